@@ -0,0 +1,70 @@
+package padman.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import padman.vinnsla.AudioEngine;
+import padman.vinnsla.Equalizer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ Cost of the master effects: one block of ten held voices rendered with a single effect of the
+ chain switched on, or none. Subtract the score for none to get the cost of the effect per block;
+ none also shows that bypassed effects cost nothing. Run with -prof gc to check that the effects
+ allocate nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class EffectBenchmark {
+    private static final int VOICES = 10;
+
+    @Param({"none", "eq", "reverb", "limiter"})
+    String effect;
+
+    @Param({"128", "512"})
+    int bufferFrames;
+
+    private AudioEngine engine;
+    private float[] out;
+
+    @Setup
+    public void setUp() {
+        engine = new AudioEngine(bufferFrames, VOICES);
+        out = new float[bufferFrames * AudioEngine.CHANNELS];
+        engine.setEffectBypassed(AudioEngine.LIMITER, !effect.equals("limiter"));
+        engine.setEffectBypassed(AudioEngine.REVERB, !effect.equals("reverb"));
+        engine.setEffectBypassed(AudioEngine.EQUALIZER, !effect.equals("eq"));
+        engine.setEffectParameter(AudioEngine.EQUALIZER, Equalizer.LOW, 3);
+        engine.setEffectParameter(AudioEngine.EQUALIZER, Equalizer.MID, -2);
+        engine.setEffectParameter(AudioEngine.EQUALIZER, Equalizer.HIGH, 4);
+        for (int i = 0; i < VOICES; i++) {
+            engine.noteOn(new LoopingSample(110 * Math.pow(2, i / 7.0)), i);
+        }
+        engine.render(out, bufferFrames);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public float[] held() {
+        engine.render(out, bufferFrames);
+        return out;
+    }
+}
@@ -0,0 +1,58 @@
+package padman.benchmarks;
+
+import padman.vinnsla.Sample;
+
+/**
+ A LoopingSample plays a short decaying tone over and over, so voices in a benchmark never run
+ out of sample however many blocks JMH renders.
+ */
+public class LoopingSample extends Sample {
+    private final float[] data;
+    private final int length;
+
+    /**
+     * Creates a one second stereo tone.
+     * @param frequency the pitch of the tone in Hz
+     */
+    public LoopingSample(double frequency) {
+        length = 44100;
+        data = tone(frequency, length);
+    }
+
+    /**
+     * Makes a stereo sine tone with a piano-like exponential decay.
+     * @param frequency the pitch of the tone in Hz
+     * @param frames the length in frames
+     * @return interleaved left/right samples
+     */
+    public static float[] tone(double frequency, int frames) {
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            float s = (float) (0.2 * Math.sin(2 * Math.PI * frequency * i / 44100.0) * Math.exp(-i / 88200.0));
+            data[i * 2] = s;
+            data[i * 2 + 1] = s;
+        }
+        return data;
+    }
+
+    @Override
+    public int getFrames() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int read(int frame, float[] dst, int frames) {
+        int at = frame % length;
+        for (int i = 0; i < frames; i++) {
+            dst[i * 2] = data[at * 2];
+            dst[i * 2 + 1] = data[at * 2 + 1];
+            if (++at == length) { at = 0; }
+        }
+        return frames;
+    }
+
+    @Override
+    public long getBytes() {
+        return data.length * 4L;
+    }
+}
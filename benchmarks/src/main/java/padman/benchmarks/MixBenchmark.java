@@ -0,0 +1,77 @@
+package padman.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import padman.vinnsla.AudioEngine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ Cost of rendering one block with a fixed number of sounding voices. Divide the score by the
+ number of voices for the mix cost per voice. Run with -prof gc to check that rendering
+ allocates nothing (gc.alloc.rate.norm should be 0 B/op).
+ <p>
+ mixThreads adds worker threads that share the voices of large blocks (see AudioEngine.PARALLEL_THRESHOLD).
+ Compare 0 with 1 and 3 on a machine with at least that many spare cores to see how mixing scales.
+ <p>
+ kernel picks the MixKernel: vector runs the Vector API kernel, scalar the plain loops. Each fork
+ is a new JVM, so the choice made at setup holds for the whole run. For voices mixed per
+ millisecond, divide voices * 1000 by the score.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class MixBenchmark {
+    @Param({"1", "10", "23", "64", "128", "256"})
+    int voices;
+
+    @Param({"128", "256", "512"})
+    int bufferFrames;
+
+    @Param({"0", "1", "3"})
+    int mixThreads;
+
+    @Param({"vector", "scalar"})
+    String kernel;
+
+    private AudioEngine engine;
+    private float[] out;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("padman.vector", String.valueOf(kernel.equals("vector")));
+        engine = new AudioEngine(bufferFrames, voices, mixThreads);
+        out = new float[bufferFrames * AudioEngine.CHANNELS];
+        for (int i = 0; i < voices; i++) {
+            engine.noteOn(new LoopingSample(110 * Math.pow(2, i / 12.0)), i);
+        }
+        engine.render(out, bufferFrames);
+        if (!AudioEngine.getMixKernel().startsWith(kernel)) {
+            throw new IllegalStateException("asked for the " + kernel + " kernel, got " + AudioEngine.getMixKernel());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public float[] held() {
+        engine.render(out, bufferFrames);
+        return out;
+    }
+}
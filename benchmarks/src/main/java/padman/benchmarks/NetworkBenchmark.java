@@ -0,0 +1,110 @@
+package padman.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import padman.vinnsla.AudioEngine;
+import padman.vinnsla.Instrument;
+import padman.vinnsla.NoteClient;
+import padman.vinnsla.NoteServer;
+import padman.vinnsla.Sample;
+import padman.vinnsla.SampleBank;
+import padman.vinnsla.SampleFormat;
+import padman.vinnsla.SampleLibrary;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Load test of the network note server: a NoteClient on another thread sends a steady stream of
+ notes over loopback at the given rate of events per second, while the benchmark plays a local
+ ten finger chord as TriggerBenchmark.chord does. Compare the scores with rate 0 to see what
+ the remote notes cost the local keys. The server lets through MAX_NOTES note ons a second, as
+ the application does by default; its counts are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class NetworkBenchmark {
+    private static final int BUFFER_FRAMES = 256;
+    private static final int MAX_NOTES = 1000;
+
+    @Param({"0", "5000", "20000"})
+    int rate;
+
+    private AudioEngine engine;
+    private NoteServer server;
+    private Thread generator;
+    private Sample[] samples;
+    private float[] out;
+    private int step = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        engine = new AudioEngine(BUFFER_FRAMES, 128);
+        engine.setReleaseTime(0.1);
+        out = new float[BUFFER_FRAMES * AudioEngine.CHANNELS];
+        SampleBank bank = new SampleBank(SampleFormat.INT16, false);
+        for (int i = 0; i < 61; i++) {
+            bank.add(LoopingSample.tone(65.4 * Math.pow(2, i / 12.0), 44100));
+        }
+        SampleLibrary library = new SampleLibrary(1L << 30, SampleFormat.INT16, false, new Properties());
+        library.add(new Instrument("tone", 36, bank));
+        samples = new Sample[64];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new LoopingSample(65.4 * Math.pow(2, i / 12.0));
+        }
+        server = new NoteServer(engine, library, 0, 10, MAX_NOTES);
+        if (rate > 0) {
+            int port = server.getPort();
+            generator = new Thread(() -> {
+                try (NoteClient client = new NoteClient("127.0.0.1", port)) {
+                    client.generate(rate, Long.MAX_VALUE);
+                } catch (IOException e) {
+                    System.err.println("Load generator stopped: " + e.getMessage());
+                }
+            }, "load generator");
+            generator.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        if (generator != null) {
+            generator.interrupt();
+            generator.join();
+        }
+        server.close();
+        System.out.println("packets " + server.getReceived() + ", events played " + server.getPlayed()
+                + ", dropped " + server.getDropped() + ", late " + server.getLate()
+                + ", engine dropped " + engine.getDroppedEvents());
+        engine.close();
+    }
+
+    @Benchmark
+    public float[] chord() {
+        int root = (step++ * 5) % 48;
+        for (int finger = 0; finger < 10; finger++) {
+            engine.noteOn(samples[root + finger], 100 + root + finger);
+        }
+        engine.render(out, BUFFER_FRAMES);
+        for (int finger = 0; finger < 10; finger++) {
+            engine.noteOff(100 + root + finger);
+        }
+        engine.render(out, BUFFER_FRAMES);
+        return out;
+    }
+}
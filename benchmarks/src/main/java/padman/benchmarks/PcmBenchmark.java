@@ -0,0 +1,58 @@
+package padman.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import padman.vinnsla.AudioEngine;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Cost of converting one block from floats to 16 bit PCM, the last step before the sound card.
+ About a tenth of the samples are outside -1..1, so clipping is exercised. kernel works as in MixBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class PcmBenchmark {
+    @Param({"128", "512"})
+    int bufferFrames;
+
+    @Param({"vector", "scalar"})
+    String kernel;
+
+    private float[] in;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("padman.vector", String.valueOf(kernel.equals("vector")));
+        if (!AudioEngine.getMixKernel().startsWith(kernel)) {
+            throw new IllegalStateException("asked for the " + kernel + " kernel, got " + AudioEngine.getMixKernel());
+        }
+        Random random = new Random(1);
+        in = new float[bufferFrames * AudioEngine.CHANNELS];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (random.nextFloat() * 2 - 1) * 1.1f;
+        }
+        out = new byte[in.length * 2];
+    }
+
+    @Benchmark
+    public byte[] toPcm16() {
+        AudioEngine.toPcm16(in, out, bufferFrames);
+        return out;
+    }
+}
@@ -0,0 +1,58 @@
+package padman.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import padman.vinnsla.Sample;
+import padman.vinnsla.SampleBank;
+import padman.vinnsla.SampleFormat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ Cost of reading one 256 frame block out of a SampleBank sample in each storage format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleReadBenchmark {
+    private static final int FRAMES = 256;
+
+    @Param({"FLOAT32", "INT16", "MONO16"})
+    SampleFormat format;
+
+    @Param({"false", "true"})
+    boolean offHeap;
+
+    private Sample sample;
+    private float[] dst;
+    private int position = 0;
+
+    @Setup
+    public void setUp() {
+        SampleBank bank = new SampleBank(format, offHeap);
+        sample = bank.get(bank.add(LoopingSample.tone(261.6, 44100 * 8)));
+        dst = new float[FRAMES * 2];
+    }
+
+    @Benchmark
+    public float[] read() {
+        if (sample.read(position, dst, FRAMES) < FRAMES) {
+            position = 0;
+        } else {
+            position += FRAMES;
+        }
+        return dst;
+    }
+}
@@ -0,0 +1,92 @@
+package padman.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import padman.vinnsla.AudioEngine;
+import padman.vinnsla.Sample;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ Playing patterns that stress note handling rather than mixing: each operation posts the events of
+ one step of the pattern and renders the block that makes them audible, so the score is the time
+ from a key press to its first block being ready.
+ <ul>
+ <li>chord: ten fingers down in one block, up in the next.</li>
+ <li>trill: two notes alternating every block.</li>
+ <li>pedal: a new note played and let go of every block with the sustain pedal down, so nothing is released
+ and once the pool is full every note steals a voice.</li>
+ </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class TriggerBenchmark {
+    private static final int BUFFER_FRAMES = 256;
+
+    @Param({"23", "64", "128"})
+    int maxVoices;
+
+    private AudioEngine engine;
+    private Sample[] samples;
+    private float[] out;
+    private int step = 0;
+
+    @Setup
+    public void setUp() {
+        engine = new AudioEngine(BUFFER_FRAMES, maxVoices);
+        engine.setReleaseTime(0.5);
+        out = new float[BUFFER_FRAMES * AudioEngine.CHANNELS];
+        samples = new Sample[64];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new LoopingSample(65.4 * Math.pow(2, i / 12.0));
+        }
+    }
+
+    @Benchmark
+    public float[] chord() {
+        int root = (step++ * 5) % 48;
+        for (int finger = 0; finger < 10; finger++) {
+            engine.noteOn(samples[root + finger], root + finger);
+        }
+        engine.render(out, BUFFER_FRAMES);
+        for (int finger = 0; finger < 10; finger++) {
+            engine.noteOff(root + finger);
+        }
+        engine.render(out, BUFFER_FRAMES);
+        return out;
+    }
+
+    @Benchmark
+    public float[] trill() {
+        int on = 30 + (step & 1);
+        int off = 31 - (step & 1);
+        step++;
+        engine.noteOff(off);
+        engine.noteOn(samples[on], on);
+        engine.render(out, BUFFER_FRAMES);
+        return out;
+    }
+
+    @Benchmark
+    public float[] pedal() {
+        if (step == 0) { engine.setSustain(true); }
+        int key = step++ % samples.length;
+        engine.noteOn(samples[key], key);
+        engine.noteOff(key);
+        engine.render(out, BUFFER_FRAMES);
+        return out;
+    }
+}
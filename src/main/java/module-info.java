@@ -1,8 +1,9 @@
 open module padman.vidmot {
     requires javafx.controls;
     requires javafx.fxml;
-    requires javafx.media;
     requires java.desktop;
+    requires java.management;
+    requires static jdk.incubator.vector; // only read when started with --add-modules jdk.incubator.vector
 
 //    opens padman.vidmot to javafx.fxml;
 //    exports padman.vidmot;
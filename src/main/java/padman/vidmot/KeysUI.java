@@ -1,9 +1,9 @@
 package padman.vidmot;
 
+import javafx.animation.AnimationTimer;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ListChangeListener;
-import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Label;
@@ -15,6 +15,10 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import padman.vinnsla.AudioEngine;
+import padman.vinnsla.KeyLayout;
+import padman.vinnsla.Looper;
 import padman.vinnsla.SampleHolder;
 import java.net.URL;
 import java.util.*;
@@ -22,6 +26,16 @@ import java.util.*;
 /**
  The KeysUI class is the controller class for the graphical user interface for the keyboard keys and its functionalities.
  It implements the Initializable interface.
+ <p>
+ Key handlers only play or release the note and flip a bit; they never touch the buttons. Which
+ buttons look pressed, and what they are labelled, is applied once per JavaFX pulse by an
+ AnimationTimer: it combines the keys pressed here with the keys the audio engine has held down
+ (which includes MIDI and loops), and restyles only the buttons whose state changed since the last
+ pulse. Several keys can play the same sample, so the engine's keys are only looked up for samples
+ not played from here; otherwise pressing one key would light another with the same note.
+ <p>
+ Note name labels for every transposition and scale are worked out once at start. The loop buttons
+ are labelled the same way, from the state the looper reports.
  */
 public class KeysUI implements Initializable {
 
@@ -30,26 +44,32 @@ public class KeysUI implements Initializable {
     @FXML
     private Label fxRootNote;
     @FXML
+    private Label fxMetrics;
+    @FXML
     private Button fxZ, fxX, fxC, fxV, fxB, fxN, fxM, fxComma, fxDot, fxÞ, fxA, fxS, fxD, fxF, fxG, fxH, fxJ, fxK, fxL, fxÆ, fxQ, fxW, fxE, fxR, fxT, fxY, fxU, fxI, fxO, fxP, fx1, fx2, fx3, fx4, fx5, fx6, fx7, fx8, fx9, fx0;
     private Button[] buttons;
-    private HashMap<KeyCode, Button> keycode_button_map;
-    private int[] keyIndicesMajor = { 0, 2, 4, 5, 7, 9, 11, 12, 14, 16, 12, 14, 16, 17, 19, 21, 23, 24, 26, 28, 24, 26, 28, 29, 31, 33, 35, 36, 38, 40, 36, 38, 40,41, 43, 45, 47, 48, 50, 52 };
-    private Set<Integer> minor = new HashSet<>(Arrays.asList(4, 9, 11, 16, 21, 23, 28, 33, 35, 40, 45, 47, 52));
-    private HashMap<KeyCode, Integer> keycode_int_map;
-    private HashMap<Integer, String> int_noteNames_map;
-    private ObservableList<KeyCode> pressedKeys = FXCollections.observableArrayList();
+    private final int[] keycode_int_map = new int[KeyCode.values().length]; // KeyCode ordinal to key number in KeyLayout, or -1
+    private int[] soundingKeys; // sample index each key pressed here is playing, or -1
+    private long pressedKeys = 0; // bit per key pressed here, by key number
+    private final long[] heldKeys = new long[AudioEngine.MAX_KEYS / 64]; // keys the engine has held, by sample index
+    private final long[] releasedSamples = new long[AudioEngine.MAX_KEYS / 64]; // let go of here since the last pulse
+    private long litKeys = 0; // bit per button styled as pressed
+    private String[][] noteLabels; // button texts for each transposition * 2 + (isMajor ? 0 : 1)
+    private boolean labelsChanged = false; // the buttons need relabelling on the next pulse
     @FXML
-    private Button fxShowNotes, fxMinorMajor;
+    private Button fxShowNotes, fxMinorMajor, fxInstrument, fxLoop, fxLoopStop;
     private String[] keyboardKeys;
     @FXML
     private Button fxQuit, fxMinimize;
     @FXML
     private HBox topBar;
     @FXML
-    private Slider fxVolSlide;
+    private Slider fxVolSlide, fxToneSlide, fxReverbSlide;
     private final String[] noteNames = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
     private int transposition = 0;
     private boolean isMajor = true;
+    private boolean pedalDown = false; // the space bar works as a sustain pedal
+    private Looper.State loopState = Looper.State.EMPTY; // the looper state the loop buttons are labelled for
     private boolean showNotes = false;
 
     /**
@@ -60,13 +80,91 @@ public class KeysUI implements Initializable {
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
         setButtons();
-        SampleHolder.importSamplesFromFolder("src/main/resources/padman/vidmot/Audio/PianoC2-C7");
+        SampleHolder.importSamplesFromResource(getClass().getResource("Audio/PianoC2-C7"));
+        warmUpSamples();
+        fxInstrument.setText(SampleHolder.getInstrumentName());
         setStyleClasses();
         setRootNoteLabel();
         setUpFocus();
-        setupListeners();
         addVolumeSlider(fxVolSlide);
+        addEffectSliders();
+        openMidi();
+        showMetrics();
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                showKeys();
+                showLoopState();
+            }
+        }.start();
+    }
+
+    /**
+     * Brings the buttons up to date, once per pulse: styles the keys that were pressed or let go of
+     * since the last pulse and relabels the buttons if the labels changed.
+     */
+    private void showKeys() {
+        SampleHolder.getHeldKeys(heldKeys);
+        for (long bits = pressedKeys; bits != 0; bits &= bits - 1) {
+            int sampleIndex = soundingKeys[Long.numberOfTrailingZeros(bits)];
+            if (sampleIndex != -1) { heldKeys[sampleIndex >> 6] &= ~(1L << sampleIndex); }
+        }
+        for (int word = 0; word < heldKeys.length; word++) { // the engine may not have had the note off yet
+            heldKeys[word] &= ~releasedSamples[word];
+            releasedSamples[word] = 0;
+        }
+        long lit = pressedKeys;
+        for (int word = 0; word < heldKeys.length; word++) {
+            for (long bits = heldKeys[word]; bits != 0; bits &= bits - 1) {
+                int key = KeyLayout.keyOfSample(word << 6 | Long.numberOfTrailingZeros(bits), transposition, isMajor);
+                if (key != -1 && key < buttons.length) { lit |= 1L << key; }
+            }
+        }
+        for (long changed = lit ^ litKeys; changed != 0; changed &= changed - 1) {
+            int key = Long.numberOfTrailingZeros(changed);
+            if ((lit & 1L << key) != 0) {
+                buttons[key].getStyleClass().add("buttonPressed");
+            } else {
+                buttons[key].getStyleClass().remove("buttonPressed");
+            }
+        }
+        litKeys = lit;
+        if (labelsChanged) {
+            String[] labels = showNotes ? noteLabels[transposition * 2 + (isMajor ? 0 : 1)] : keyboardKeys;
+            for (int i = 0; i < buttons.length; i++) {
+                buttons[i].setText(labels[i]);
+            }
+            labelsChanged = false;
+        }
+    }
+
+    /**
+     * Shows the engine metrics in the top bar, twice a second, when padman.metrics is set.
+     */
+    private void showMetrics() {
+        if (!Boolean.getBoolean("padman.metrics")) { return; }
+        fxMetrics.setVisible(true);
+        fxMetrics.setManaged(true);
+        Timeline refresh = new Timeline(new KeyFrame(Duration.millis(500),
+                e -> fxMetrics.setText(SampleHolder.getEngine().getMetrics().toString())));
+        refresh.setCycleCount(Timeline.INDEFINITE);
+        refresh.play();
     }
+
+    /**
+     * Opens the MIDI inputs. Notes go straight from the MIDI thread to the audio engine, and the
+     * keys they play light up through the engine's held keys like any other.
+     */
+    private void openMidi() {
+        SampleHolder.openMidi();
+    }
+    /**
+     * Pages in the samples the keyboard can play at the current transposition, nearest first.
+     */
+    private void warmUpSamples() {
+        SampleHolder.warmUp(transposition - 1, transposition + KeyLayout.highestKeyIndex());
+    }
+
     /**
      * Sets up the focus traversable for certain GUI components.
      */
@@ -76,26 +174,13 @@ public class KeysUI implements Initializable {
         fxTransDownSemi.setFocusTraversable(false);
     }
 
-    private void setupListeners() {
-        pressedKeys.addListener((ListChangeListener<KeyCode>) change -> {
-            while (change.next()) {
-                if (change.wasRemoved()) {
-                    List<? extends KeyCode> removed = change.getRemoved();
-                    for (KeyCode keyCode : removed) {
-                        SampleHolder.setFade(keycode_int_map.get(keyCode));
-                    }
-                } else if (pressedKeys.isEmpty()) {
-                    SampleHolder.setFade();
-                }
-            }
-        });
-    }
     /**
-     Initializes the Button[] buttons array and HashMap<KeyCode, Button> buttonMap used to map the KeyCodes to the buttons.
+     Initializes the Button[] buttons array, the map from KeyCodes to key numbers and the note name
+     labels of every transposition and scale.
      */
     private void setButtons(){
         buttons = new Button[]{fxZ, fxX, fxC, fxV, fxB, fxN, fxM, fxComma, fxDot, fxÞ, fxA, fxS, fxD, fxF, fxG, fxH, fxJ, fxK, fxL, fxÆ, fxQ, fxW, fxE, fxR, fxT, fxY, fxU, fxI, fxO, fxP, fx1, fx2, fx3, fx4, fx5, fx6, fx7, fx8, fx9, fx0};
-        String[] buttonIds = {"Z", "X", "C", "V", "B", "N", "M", "COMMA", "PERIOD", "SLASH", "A", "S", "D", "F", "G", "H", "J", "K", "L", "SEMICOLON", "Q", "W", "E", "R", "T", "Y", "U", "I", "O", "P", "DIGIT1", "DIGIT2", "DIGIT3", "DIGIT4", "DIGIT5", "DIGIT6", "DIGIT7", "DIGIT8", "DIGIT9", "DIGIT0"};
+        String[] buttonIds = KeyLayout.KEY_NAMES;
         for (int i = 0; i < buttons.length && i < buttonIds.length; i++) {
             buttons[i].setId(buttonIds[i]);
         }
@@ -105,23 +190,30 @@ public class KeysUI implements Initializable {
             keyboardKeys[cnt] = b.getText();
             cnt++;
         }
-        keycode_button_map = new HashMap<>();
-        keycode_int_map = new HashMap<>();
+        soundingKeys = new int[buttons.length];
+        Arrays.fill(soundingKeys, -1);
+        Arrays.fill(keycode_int_map, -1);
         KeyCode[] keyCodes = { KeyCode.Z, KeyCode.X, KeyCode.C, KeyCode.V, KeyCode.B, KeyCode.N, KeyCode.M, KeyCode.COMMA, KeyCode.PERIOD, KeyCode.SLASH, KeyCode.A, KeyCode.S, KeyCode.D, KeyCode.F, KeyCode.G, KeyCode.H, KeyCode.J, KeyCode.K, KeyCode.L, KeyCode.SEMICOLON, KeyCode.Q, KeyCode.W, KeyCode.E, KeyCode.R, KeyCode.T, KeyCode.Y, KeyCode.U, KeyCode.I, KeyCode.O, KeyCode.P, KeyCode.DIGIT1, KeyCode.DIGIT2, KeyCode.DIGIT3, KeyCode.DIGIT4, KeyCode.DIGIT5, KeyCode.DIGIT6, KeyCode.DIGIT7, KeyCode.DIGIT8, KeyCode.DIGIT9, KeyCode.DIGIT0 };
         for (int i = 0; i < keyCodes.length; i++) {
-            keycode_button_map.put(keyCodes[i], buttons[i]);
-            keycode_int_map.put(keyCodes[i], keyIndicesMajor[i]);
+            keycode_int_map[keyCodes[i].ordinal()] = i;
         }
-        int_noteNames_map = new HashMap<>();
-
-        int octave = 2;
-        for (int i = 0; i < 64; i++) {
-            String noteName = noteNames[i % noteNames.length];
-            noteName += octave;
-            int_noteNames_map.put(i, noteName);
-            if ((i+1) % noteNames.length == 0) { octave++; }
+        noteLabels = new String[noteNames.length * 2][buttons.length];
+        for (int t = 0; t < noteNames.length; t++) {
+            for (int i = 0; i < buttons.length; i++) {
+                noteLabels[t * 2][i] = noteName(KeyLayout.keyIndex(i, t, true));
+                noteLabels[t * 2 + 1][i] = noteName(KeyLayout.keyIndex(i, t, false));
+            }
         }
     }
+
+    /**
+     * @param keyIndex a sample index, 0 being C2
+     * @return the note name with its octave, such as C#3, or an empty string for no note
+     */
+    private String noteName(int keyIndex) {
+        if (keyIndex < 0) { return ""; }
+        return noteNames[keyIndex % noteNames.length] + (2 + keyIndex / noteNames.length);
+    }
     /**
      Sets the style classes for the buttons.
      */
@@ -140,65 +232,79 @@ public class KeysUI implements Initializable {
         }
     }
     /**
-     Called when a key is released.
-     Removes the "buttonPressed" CSS style class, and removes the released key code from the pressedKeys set.
+     Called when a key is released. Fades out the note the key started and clears its bit in
+     pressedKeys; the button is restyled on the next pulse.
+     Releasing the space bar lifts the sustain pedal.
      @param e KeyEvent object
      */
     @FXML
     protected void onKeyReleased(KeyEvent e) {
-        pressedKeys.remove(e.getCode());
-        Button button = keycode_button_map.get(e.getCode());
-        button.getStyleClass().remove("buttonPressed");
+        if (e.getCode() == KeyCode.SPACE) {
+            pedalDown = false;
+            SampleHolder.setSustain(false);
+            e.consume();
+            return;
         }
+        int key = keycode_int_map[e.getCode().ordinal()];
+        if (key == -1) { return; }
+        pressedKeys &= ~(1L << key);
+        int sampleIndex = soundingKeys[key];
+        if (sampleIndex != -1) {
+            SampleHolder.setFade(sampleIndex);
+            releasedSamples[sampleIndex >> 6] |= 1L << sampleIndex;
+            soundingKeys[key] = -1;
+        }
+    }
     /**
      * Called when a key is pressed in the GUI. Determines the corresponding index of the media to be played
-     * and plays the corresponding note. Updates the GUI to indicate that the key has beenpressed.
+     * and plays the corresponding note, then sets the key's bit in pressedKeys so the button shows
+     * it on the next pulse. The space bar presses the sustain pedal.
      *
      * @param e KeyEvent corresponding to the key that was pressed
      */
     @FXML
     protected void onKeyPressed(KeyEvent e) {
-        int keyIndex = -1;
-        if (keycode_int_map.containsKey(e.getCode())) {
-            keyIndex = keycode_int_map.get(e.getCode()) + transposition;
-        }
-        if (keyIndex != -1) {
-            if (pressedKeys.contains(e.getCode())) { return; }
-            pressedKeys.add(e.getCode());
-            if (!isMajor) {
-                if (minor.contains(keyIndex - transposition)) {
-                    keyIndex -= 1;
-                }
+        if (e.getCode() == KeyCode.SPACE) {
+            if (!pedalDown) { // not again for every auto-repeat
+                pedalDown = true;
+                SampleHolder.setSustain(true);
             }
-            SampleHolder.playMedia(keyIndex);
-            Button button = keycode_button_map.get(e.getCode());
-            button.getStyleClass().add("buttonPressed");
+            e.consume();
+            return;
         }
+        press(keycode_int_map[e.getCode().ordinal()]);
     }
 
     @FXML
     private void mousePressedSample(MouseEvent e) {
         Button button = (Button) e.getSource();
-        int keyIndex = -1;
         if (button != null) {
-            keyIndex = keycode_int_map.get(KeyCode.valueOf(button.getId())) + transposition;
-        }
-        if (keyIndex != -1) {
-            if (pressedKeys.contains(KeyCode.valueOf(button.getId()))) { return; }
-            pressedKeys.add(KeyCode.valueOf(button.getId()));
-            if (!isMajor) {
-                if (minor.contains(keyIndex - transposition)) {
-                    keyIndex -= 1;
-                }
-            }
-            SampleHolder.playMedia(keyIndex);
+            press(keycode_int_map[KeyCode.valueOf(button.getId()).ordinal()]);
         }
     }
 
+    /**
+     * Plays the note of a key, unless the key is already down, and marks it pressed.
+     * @param key the key number in KeyLayout, or -1 for no key
+     */
+    private void press(int key) {
+        if (key == -1 || (pressedKeys & 1L << key) != 0) { return; }
+        int keyIndex = KeyLayout.keyIndex(key, transposition, isMajor);
+        if (keyIndex == -1) { return; }
+        SampleHolder.playMedia(keyIndex);
+        pressedKeys |= 1L << key;
+        soundingKeys[key] = keyIndex;
+    }
+
 
+    /**
+     * Switches the buttons between keyboard letters and note names.
+     */
     @FXML
     public void noteNamesHandler(ActionEvent e) {
-        setButtonTxt(e);
+        showNotes = !showNotes;
+        fxShowNotes.setText(showNotes ? "Show Keyboard" : "Show Notes");
+        labelsChanged = true;
     }
 
     /**
@@ -223,31 +329,54 @@ public class KeysUI implements Initializable {
             if (!isMajor) { minorMajorButton(e); }
         }
         setRootNoteLabel();
-        if(showNotes) { setButtonTxt(e); }
+        warmUpSamples();
+        SampleHolder.setMidiTransposition(transposition);
+        labelsChanged |= showNotes;
     }
 
     /**
-     Sets the text of each button in the buttons array based on whether "Show Note Names" or "Show Keyboard" has been clicked.
-     Also based on the current scale and transposition.
+     * Switches the keys to the next instrument in the library. Notes still sounding ring out.
      */
-    private void setButtonTxt(ActionEvent e) {
-        int key = 0;
-        if (fxShowNotes.getText().equals("Show Keyboard")) {
-            for (int i = 0; i < buttons.length; i++) {
-                buttons[i].setText(keyboardKeys[i]); }
-            showNotes = false;
-            fxShowNotes.setText("Show Notes");
-            return;
-        }
-        for (int i = 0; i < buttons.length; i++) {
-            key = keyIndicesMajor[i];
-            if (!isMajor && minor.contains(key - transposition)) {
-                key -= 1;
-            }
-            key += transposition;
-            buttons[i].setText(int_noteNames_map.get(key));
-        }
-        fxShowNotes.setText("Show Keyboard");
+    @FXML
+    private void nextInstrument() {
+        String name = SampleHolder.selectNextInstrument();
+        if (name == null) { return; }
+        fxInstrument.setText(name);
+        warmUpSamples();
+    }
+
+    /**
+     * The loop button: records a loop, closes it, then records and closes overdubs.
+     */
+    @FXML
+    private void loopButton() {
+        SampleHolder.loop();
+    }
+
+    /**
+     * Stops the loop, or clears it once stopped.
+     */
+    @FXML
+    private void loopStopButton() {
+        SampleHolder.stopLoop();
+    }
+
+    /**
+     * Labels the loop buttons with what pressing them next will do, once per pulse, if the looper's
+     * state changed. A take too short to keep goes back to EMPTY, and the buttons follow.
+     */
+    private void showLoopState() {
+        Looper.State state = SampleHolder.getLoopState();
+        if (state == loopState) { return; }
+        loopState = state;
+        fxLoop.setText(switch (state) {
+            case EMPTY -> "Record loop";
+            case RECORDING -> "Close loop";
+            case PLAYING -> "Overdub";
+            case OVERDUBBING -> "Close overdub";
+            case STOPPED -> "Play loop";
+        });
+        fxLoopStop.setText(state == Looper.State.STOPPED ? "Clear loop" : "Stop loop");
     }
 
     /**
@@ -263,7 +392,7 @@ public class KeysUI implements Initializable {
             fxMinorMajor.setText("Switch to Minor");
             isMajor = true;
         }
-        if (showNotes) { setButtonTxt(e); }
+        labelsChanged |= showNotes;
         setRootNoteLabel();
     }
 
@@ -293,6 +422,16 @@ public class KeysUI implements Initializable {
         });
     }
 
+    /**
+     * Sets up the tone and reverb sliders. Both start at 0, where their effects are switched off.
+     */
+    private void addEffectSliders() {
+        fxToneSlide.valueProperty().addListener((observable, oldValue, newValue) ->
+                SampleHolder.setTone(newValue.doubleValue()));
+        fxReverbSlide.valueProperty().addListener((observable, oldValue, newValue) ->
+                SampleHolder.setReverb(newValue.doubleValue() / 100.0));
+    }
+
     /**
      * Allows the window to be dragged by clicking and holding the top bar
      * @param event event from the top bar
@@ -0,0 +1,815 @@
+package padman.vinnsla;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ The AudioEngine mixes every sounding Voice into a single SourceDataLine from one mixer thread.
+ Samples are already decoded, so starting a note only claims a Voice from a fixed pool;
+ nothing is opened, prerolled or allocated per key press, and rendering a block allocates nothing
+ either, so the garbage collector has no reason to interrupt the mixer thread.
+ <p>
+ Active voices are kept as indices in a dense int array and free voices on an int stack.
+ When the pool is full the quietest releasing voice is stolen, or the oldest voice if none is releasing.
+ <p>
+ Keys are tracked in primitive arrays indexed by key rather than by searching the voices: the
+ newest voice of every key, how many times the key is held down, and a bitset of keys released while
+ the sustain pedal is down. Note off, pedal up and playing a key that is still sounding are
+ therefore O(1) per key, however many long releases are ringing out. Playing a key again releases
+ the voice it was playing, so repeated notes fade into each other instead of piling up held voices.
+ A key held by more than one source (two keyboard keys, the keyboard and MIDI) keeps sounding
+ until the last of them lets go. Which keys are held is also published as a bitset that other
+ threads read with getHeldKeys, so the keyboard can light up whatever is playing, loops and MIDI
+ included, without hearing about each note.
+ <p>
+ Every voice has an attack/decay/sustain/release Envelope that is computed per sample frame in the
+ mix loop, so releases are smooth at any block size instead of stepping at the JavaFX pulse rate.
+ <p>
+ Other threads never touch the voices. noteOn, noteOff, setSustain, setVolume and setReleaseTime post small
+ events into a lock-free EventQueue, and the audio thread drains every queue at the start of each
+ block. A stalled JavaFX thread therefore never holds up the audio, and the audio thread never
+ waits on a lock. The public note and parameter methods share one queue and must all be called from
+ the same thread (the JavaFX thread); any other thread that sends events opens its own queue
+ with openEventQueue, and hands it back with closeEventQueue when done.
+ <p>
+ With mix threads, blocks with at least PARALLEL_THRESHOLD sounding voices are split between the
+ audio thread and a small fixed pool of workers (ParallelMixer). Smaller blocks are mixed on the audio
+ thread alone, where waking the workers would cost more than it saves. Output still goes to the
+ device from the one mixer thread.
+ <p>
+ The inner loops (adding voices, envelope ramps, stereo panning, master volume and the conversion
+ to 16 bit) are MixKernel calls, vectorized with the Vector API when the JVM has the
+ jdk.incubator.vector module and plain loops otherwise.
+ <p>
+ Latency: a key press is heard at most one block plus the line buffer later. The line is opened
+ with room for two blocks, so with the default 256 frame block at 44.1 kHz the engine adds
+ between 5.8 ms and 17.4 ms (about 11.6 ms on average) from playMedia to the sound card.
+ A 128 frame block halves that, at the cost of waking the mixer thread twice as often.
+ The Limiter's look-ahead adds another 1.5 ms while it is on.
+ Whatever the operating system mixer adds on top (PulseAudio, CoreAudio) is not included.
+ <p>
+ The mixed block then goes through the EffectChain: by default a three band Equalizer and a Reverb,
+ both bypassed, and a look-ahead Limiter that keeps dense chords from clipping. Effect parameters
+ are posted like every other setting and glide to their new values over a few blocks, as does the
+ master volume, so moving a slider does not click. A bypassed effect is not run at all, and the
+ time each effect takes is reported in the metrics.
+ <p>
+ Every note and pedal event applied is recorded in the engine's EventLog, and its Looper plays
+ loops of them back. Loop events are scheduled on the output frame counter: a block is rendered in
+ pieces split at each loop event, so loop notes start on their exact frame rather than at the start
+ of the block they fall in.
+ <p>
+ The audio thread reports voices, steals, render times, underruns and note latency to the
+ engine's EngineMetrics as it goes, without locks or allocation.
+ */
+public class AudioEngine {
+    public static final float SAMPLE_RATE = 44100f;
+    public static final int CHANNELS = 2;
+    public static final int DEFAULT_BUFFER_FRAMES = 256;
+    private static final int BYTES_PER_FRAME = CHANNELS * 2; // 16 bit output
+    private static final int EVENT_CAPACITY = 4096;
+    private static final int LOG_CAPACITY = 32768;
+    private static final int CLOSE_WAIT = 1000; // milliseconds closeEventQueue waits for the queue to drain
+    public static final int PARALLEL_THRESHOLD = 48;
+    public static final int MAX_KEYS = 256;
+    /** Number of the Equalizer in the default effect chain. */
+    public static final int EQUALIZER = 0;
+    /** Number of the Reverb in the default effect chain. */
+    public static final int REVERB = 1;
+    /** Number of the Limiter in the default effect chain. */
+    public static final int LIMITER = 2;
+    private static final float PAN_CENTRE = KeyLayout.SAMPLE_RANGE / 2f; // the key panned to the centre
+
+    private final int bufferFrames;
+    private final int maxVoices;
+    private final Voice[] pool; // only touched by the audio thread, like the arrays below
+    private final int[] active; // pool indices of sounding voices
+    private int activeCount = 0;
+    private final int[] free; // pool indices of idle voices
+    private int freeCount;
+    private long serial = 0;
+    private final int[] keyVoice = new int[MAX_KEYS]; // pool index of each key's newest voice, or -1
+    private final int[] keyHolds = new int[MAX_KEYS]; // note ons of each key not yet matched by a note off
+    private final long[] sustained = new long[MAX_KEYS / 64]; // keys let go of while the pedal was down
+    private final AtomicLongArray heldKeys = new AtomicLongArray(MAX_KEYS / 64); // keys with holds, for other threads
+    private boolean sustain = false;
+    private final float[] mixBuffer;
+    private final float[] scratch; // sample frames of one voice, reused for every voice
+    private final float[] envBuffer; // envelope levels of one voice, reused for every voice
+    private final byte[] outBuffer;
+    private final float[] partBuffer; // voices mixed for a piece of a block that does not start at frame 0
+    private long frameClock = 0; // frames rendered so far
+    private final EventLog log = new EventLog(LOG_CAPACITY);
+    private final Looper looper = new Looper(this, log);
+    private final EventQueue events = new EventQueue(EVENT_CAPACITY); // fed by the public methods
+    private volatile EventQueue[] queues = { events };
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile int voicesSounding = 0; // activeCount as last published by the audio thread
+    private float masterVolume = 1f;
+    private float appliedVolume = 1f; // the master volume the last block ended at
+    private float stereoWidth = 0f; // how far the lowest and highest keys are panned
+    private final Envelope.Settings envelope = new Envelope.Settings();
+    private volatile boolean running = false;
+    private final EffectChain effects;
+    private final ParallelMixer parallel; // null when mixing on the audio thread only
+    private final EngineMetrics metrics = new EngineMetrics(this);
+    private long blockStart; // System.nanoTime the block being rendered started at
+    private long outputDelay; // nanoseconds of audio waiting in the line ahead of the block being rendered
+    private SourceDataLine line;
+    private Thread mixerThread;
+
+    /**
+     * Creates an engine that renders blocks of the given size on the audio thread alone.
+     * @param bufferFrames frames per block, smaller blocks give lower latency
+     * @param maxVoices the number of voices in the pool
+     */
+    public AudioEngine(int bufferFrames, int maxVoices) {
+        this(bufferFrames, maxVoices, 0);
+    }
+
+    /**
+     * Creates an engine that renders blocks of the given size.
+     * @param bufferFrames frames per block, smaller blocks give lower latency
+     * @param maxVoices the number of voices in the pool
+     * @param mixThreads worker threads that help mix large blocks, 0 to mix on the audio thread only
+     */
+    public AudioEngine(int bufferFrames, int maxVoices, int mixThreads) {
+        if (bufferFrames <= 0) { throw new IllegalArgumentException("bufferFrames must be positive"); }
+        this.bufferFrames = bufferFrames;
+        this.maxVoices = maxVoices;
+        this.pool = new Voice[maxVoices];
+        this.active = new int[maxVoices];
+        this.free = new int[maxVoices];
+        for (int i = 0; i < maxVoices; i++) {
+            pool[i] = new Voice(envelope);
+            free[i] = maxVoices - 1 - i;
+        }
+        this.freeCount = maxVoices;
+        Arrays.fill(keyVoice, -1);
+        this.mixBuffer = new float[bufferFrames * CHANNELS];
+        this.scratch = new float[bufferFrames * CHANNELS];
+        this.envBuffer = new float[bufferFrames];
+        this.outBuffer = new byte[bufferFrames * BYTES_PER_FRAME];
+        this.partBuffer = new float[bufferFrames * CHANNELS];
+        this.effects = new EffectChain(bufferFrames);
+        effects.add(new Equalizer(), true);
+        effects.add(new Reverb(), true);
+        effects.add(new Limiter(), false);
+        this.parallel = mixThreads > 0 ? new ParallelMixer(mixThreads, bufferFrames, maxVoices) : null;
+    }
+
+    /**
+     * Opens the default output line and starts the mixer thread.
+     * @throws LineUnavailableException if no output line can be opened
+     */
+    public void start() throws LineUnavailableException {
+        if (running) { return; }
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+        try {
+            line = AudioSystem.getSourceDataLine(format);
+        } catch (IllegalArgumentException e) {
+            throw new LineUnavailableException(e.getMessage());
+        }
+        line.open(format, bufferFrames * BYTES_PER_FRAME * 2);
+        line.start();
+        running = true;
+        mixerThread = new Thread(this::runMixer, "PadMan mixer");
+        mixerThread.setDaemon(true);
+        mixerThread.setPriority(Thread.MAX_PRIORITY);
+        mixerThread.start();
+    }
+
+    /**
+     * Stops the mixer thread and closes the output line.
+     */
+    public void stop() {
+        running = false;
+        if (mixerThread != null) {
+            try {
+                mixerThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mixerThread = null;
+        }
+        if (line != null) {
+            line.stop();
+            line.close();
+            line = null;
+        }
+    }
+
+    /**
+     * Stops the engine and its mix worker threads. The engine cannot be used afterwards.
+     */
+    public void close() {
+        stop();
+        if (parallel != null) {
+            parallel.shutdown();
+        }
+    }
+
+    private void runMixer() {
+        boolean first = true;
+        while (running) {
+            int queued = line.getBufferSize() - line.available();
+            if (queued <= 0 && !first) {
+                metrics.underrun();
+            }
+            first = false;
+            outputDelay = (long) (queued / BYTES_PER_FRAME * 1e9 / SAMPLE_RATE);
+            render(mixBuffer, bufferFrames);
+            toPcm16(mixBuffer, outBuffer, bufferFrames);
+            line.write(outBuffer, 0, outBuffer.length); // blocks until the line has room
+        }
+    }
+
+    /**
+     * Creates a queue another thread can send events to the engine through.
+     * The queue may only be written to by one thread.
+     * @param capacity the number of events the queue can hold
+     * @return the new queue
+     */
+    public synchronized EventQueue openEventQueue(int capacity) {
+        removeClosedQueues();
+        EventQueue queue = new EventQueue(capacity);
+        EventQueue[] grown = Arrays.copyOf(queues, queues.length + 1);
+        grown[queues.length] = queue;
+        queues = grown;
+        return queue;
+    }
+
+    /**
+     * Hands back a queue opened with openEventQueue. The engine stops draining it once the events
+     * already in it have been applied: this waits for the audio thread to take them, and if the
+     * engine is not running the queue is kept until they have been rendered. Called by the thread
+     * writing to the queue, after its last event.
+     * @param queue the queue
+     */
+    public void closeEventQueue(EventQueue queue) {
+        queue.close();
+        try {
+            for (int waited = 0; running && !queue.isEmpty() && waited < CLOSE_WAIT; waited++) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            removeClosedQueues();
+        }
+    }
+
+    private void removeClosedQueues() {
+        EventQueue[] kept = new EventQueue[queues.length];
+        int n = 0;
+        for (EventQueue queue : queues) {
+            if (!queue.isClosed() || !queue.isEmpty()) { kept[n++] = queue; }
+        }
+        if (n < queues.length) { queues = Arrays.copyOf(kept, n); }
+    }
+
+    /**
+     * Counts an event that a queue opened with openEventQueue had no room for.
+     */
+    void countDroppedEvent() {
+        droppedEvents.incrementAndGet();
+    }
+
+    private void post(int type, int key, float value, Sample sample) {
+        if (!events.offer(type, key, value, sample)) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts playing a sample on a free voice, or on a stolen one if all voices are sounding.
+     * @param sample the sample to play
+     * @param key the key the note belongs to, used to release it later
+     */
+    public void noteOn(Sample sample, int key) {
+        noteOn(sample, key, 1f);
+    }
+
+    /**
+     * Starts playing a sample at a given gain, for instance from a MIDI note's velocity.
+     * @param sample the sample to play
+     * @param key the key the note belongs to, used to release it later
+     * @param velocity the gain of the note, 0 to 1
+     * @throws IllegalArgumentException if key is not between 0 and MAX_KEYS - 1
+     */
+    public void noteOn(Sample sample, int key, float velocity) {
+        checkKey(key);
+        post(EventQueue.NOTE_ON, key, velocity, sample);
+    }
+
+    /**
+     * Lets go of a key. Its voice fades out once no one else holds the key and the sustain
+     * pedal is up.
+     * @param key the key that was released
+     * @throws IllegalArgumentException if key is not between 0 and MAX_KEYS - 1
+     */
+    public void noteOff(int key) {
+        checkKey(key);
+        post(EventQueue.NOTE_OFF, key, 0f, null);
+    }
+
+    private static void checkKey(int key) {
+        if (key < 0 || key >= MAX_KEYS) { throw new IllegalArgumentException("key " + key + " is not below " + MAX_KEYS); }
+    }
+
+    /**
+     * Presses or lifts the sustain pedal. While it is down, keys that are let go of keep sounding;
+     * lifting it fades out every one of them that is not held again.
+     * @param down true to press the pedal
+     */
+    public void setSustain(boolean down) {
+        post(EventQueue.SUSTAIN, 0, down ? 1f : 0f, null);
+    }
+
+    /**
+     * Fades out every voice that is still held or sustained, whatever the pedal is doing.
+     */
+    public void allNotesOff() {
+        post(EventQueue.ALL_NOTES_OFF, 0, 0f, null);
+    }
+
+    /**
+     * Sets the master volume applied to the whole mix.
+     * @param volume volume between 0 and 1
+     */
+    public void setVolume(double volume) {
+        post(EventQueue.VOLUME, 0, (float) volume, null);
+    }
+
+    /**
+     * Spreads notes across the stereo field by key, low keys to the left and high keys to the right,
+     * like sitting at a piano. Applies to notes started from now on.
+     * @param width 0 for every note in the centre, 1 for the outermost keys fully to one side
+     */
+    public void setStereoWidth(double width) {
+        post(EventQueue.STEREO_WIDTH, 0, (float) width, null);
+    }
+
+    /**
+     * Sets a parameter of an effect in the chain. The effect glides to the new value over a few blocks.
+     * @param effect the number of the effect, for instance REVERB
+     * @param parameter the number of the parameter, for instance Reverb.MIX
+     * @param value the new value, clamped to the parameter's range
+     */
+    public void setEffectParameter(int effect, int parameter, double value) {
+        post(EventQueue.EFFECT_PARAMETER, effect << 8 | parameter, (float) value, null);
+    }
+
+    /**
+     * Switches an effect in the chain on or off. A bypassed effect costs nothing.
+     * @param effect the number of the effect, for instance REVERB
+     * @param bypassed true to switch it off
+     */
+    public void setEffectBypassed(int effect, boolean bypassed) {
+        post(EventQueue.EFFECT_BYPASS, effect, bypassed ? 1f : 0f, null);
+    }
+
+    /**
+     * @return the master effects, to add effects or read their timings
+     */
+    public EffectChain getEffects() {
+        return effects;
+    }
+
+    /**
+     * Sets how long new notes take to rise from silence to full level.
+     * @param seconds the attack time
+     */
+    public void setAttackTime(double seconds) {
+        post(EventQueue.ATTACK_TIME, 0, (float) seconds, null);
+    }
+
+    /**
+     * Sets how long notes take to fall from full level to the sustain level after the attack.
+     * @param seconds the decay time
+     */
+    public void setDecayTime(double seconds) {
+        post(EventQueue.DECAY_TIME, 0, (float) seconds, null);
+    }
+
+    /**
+     * Sets the level held notes stay at after the decay.
+     * @param level the sustain level between 0 and 1
+     */
+    public void setSustainLevel(double level) {
+        post(EventQueue.SUSTAIN_LEVEL, 0, (float) level, null);
+    }
+
+    /**
+     * Sets how long released notes take to fade out.
+     * @param seconds the length of the fade
+     */
+    public void setReleaseTime(double seconds) {
+        post(EventQueue.RELEASE_TIME, 0, (float) seconds, null);
+    }
+
+    /**
+     * Chooses between straight-line and exponential decay and release curves.
+     * @param exponential true for exponential curves, which sound more natural on long releases
+     */
+    public void setExponentialEnvelope(boolean exponential) {
+        post(EventQueue.ENVELOPE_CURVE, 0, exponential ? 1f : 0f, null);
+    }
+
+    /**
+     * The loop button: starts recording a loop, closes the take and plays it, starts an overdub or
+     * adds the overdub to the loop, depending on what the Looper is doing.
+     */
+    public void loop() {
+        post(EventQueue.LOOP, 0, 0f, null);
+    }
+
+    /**
+     * Stops the loop playing, or clears it if it is already stopped.
+     */
+    public void stopLoop() {
+        post(EventQueue.LOOP_STOP, 0, 0f, null);
+    }
+
+    /**
+     * Drops the overdub being recorded, or else the newest overdub of the loop.
+     */
+    public void undoLoop() {
+        post(EventQueue.LOOP_UNDO, 0, 0f, null);
+    }
+
+    /**
+     * Replaces the loop with another, for instance one loaded from a file, and starts playing it.
+     * @param loop the loop, which the engine owns from now on
+     */
+    public void playLoop(Loop loop) {
+        looper.offer(loop);
+        post(EventQueue.LOOP_LOAD, 0, 0f, null);
+    }
+
+    /**
+     * Copies the closed layers of the loop, for instance to save them. Undo on the audio thread
+     * removes layers and the next overdub reuses their room, so the audio thread makes the copy
+     * itself between two blocks; while the engine is not running the calling thread makes it.
+     * May be called from any thread.
+     * @return the copy, or null if the audio thread did not make it within CLOSE_WAIT
+     */
+    public Loop copyLoop() {
+        synchronized (looper) {
+            Loop copy = new Loop(looper.getLoop().capacity());
+            looper.requestCopy(copy);
+            if (!running) {
+                looper.copy();
+                return copy;
+            }
+            EventQueue queue = openEventQueue(2);
+            queue.offer(EventQueue.LOOP_COPY, 0, 0f, null);
+            try {
+                for (int waited = 0; running && looper.isCopying(copy) && waited < CLOSE_WAIT; waited++) {
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeEventQueue(queue);
+            if (looper.isCopying(copy)) {
+                looper.requestCopy(null);
+                return null;
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * @return the looper, to see what it is doing
+     */
+    public Looper getLooper() {
+        return looper;
+    }
+
+    /**
+     * @return the log of every note and pedal event played
+     */
+    public EventLog getEventLog() {
+        return log;
+    }
+
+    /**
+     * Applies every event waiting in the queues. Runs on the audio thread.
+     */
+    private void drainEvents() {
+        for (EventQueue queue : queues) {
+            while (queue.poll()) {
+                switch (queue.type()) {
+                    case EventQueue.NOTE_ON -> {
+                        if (startVoice(queue.sample(), queue.key(), queue.value())) {
+                            log.record(EventQueue.NOTE_ON, queue.key(), queue.value(), queue.sample(), queue.time(), frameOf(queue.time()));
+                            metrics.noteStarted(blockStart + outputDelay - queue.time());
+                        }
+                    }
+                    case EventQueue.NOTE_OFF -> {
+                        if (releaseVoice(queue.key())) {
+                            log.record(EventQueue.NOTE_OFF, queue.key(), 0f, null, queue.time(), frameOf(queue.time()));
+                        }
+                    }
+                    case EventQueue.ALL_NOTES_OFF -> releaseAll();
+                    case EventQueue.SUSTAIN -> {
+                        setPedal(queue.value() != 0f);
+                        log.record(EventQueue.SUSTAIN, 0, queue.value(), null, queue.time(), frameOf(queue.time()));
+                    }
+                    case EventQueue.LOOP -> looper.press(frameOf(queue.time()));
+                    case EventQueue.LOOP_STOP -> looper.stop(frameOf(queue.time()));
+                    case EventQueue.LOOP_UNDO -> looper.undo();
+                    case EventQueue.LOOP_LOAD -> looper.load(frameClock);
+                    case EventQueue.LOOP_COPY -> looper.copy();
+                    case EventQueue.VOLUME -> masterVolume = queue.value();
+                    case EventQueue.STEREO_WIDTH -> stereoWidth = Math.max(0f, Math.min(1f, queue.value()));
+                    case EventQueue.EFFECT_PARAMETER -> effects.setParameter(queue.key() >> 8, queue.key() & 0xff, queue.value());
+                    case EventQueue.EFFECT_BYPASS -> effects.setBypassed(queue.key(), queue.value() != 0f);
+                    case EventQueue.ATTACK_TIME -> envelope.attackFrames = (int) (queue.value() * SAMPLE_RATE);
+                    case EventQueue.DECAY_TIME -> envelope.decayFrames = (int) (queue.value() * SAMPLE_RATE);
+                    case EventQueue.SUSTAIN_LEVEL -> envelope.sustainLevel = Math.max(0f, Math.min(1f, queue.value()));
+                    case EventQueue.RELEASE_TIME -> envelope.releaseFrames = (int) (queue.value() * SAMPLE_RATE);
+                    case EventQueue.ENVELOPE_CURVE -> envelope.exponential = queue.value() != 0f;
+                    default -> { }
+                }
+            }
+        }
+    }
+
+    /**
+     * The output frame the player heard when an event was sent: the block being rendered,
+     * less the time since the event and the audio still waiting in the line. Rendering without
+     * the mixer thread, as OfflineRenderer does, is not paced by the clock, so there an event
+     * belongs to the block it is applied in.
+     * @param time the System.nanoTime the event was sent at
+     */
+    private long frameOf(long time) {
+        if (!running) { return frameClock; }
+        return frameClock - (long) ((blockStart + outputDelay - time) * (SAMPLE_RATE / 1e9));
+    }
+
+    /**
+     * Starts a note. Audio thread only.
+     * @return false if the key is out of range and nothing was played
+     */
+    boolean startVoice(Sample sample, int key, float velocity) {
+        if (key < 0 || key >= MAX_KEYS) { return false; } // posted past checkKey, from a queue of its own
+        int previous = keyVoice[key];
+        if (previous != -1) { // retrigger: the old note fades out under the new one
+            pool[previous].release();
+        }
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+            active[activeCount++] = slot;
+        } else {
+            slot = stealVoice();
+            detach(slot);
+            metrics.voiceStolen();
+        }
+        float pan = stereoWidth * (key - PAN_CENTRE) / PAN_CENTRE;
+        pool[slot].start(sample, key, serial++, velocity, Math.max(-1f, Math.min(1f, pan)));
+        keyVoice[key] = slot;
+        if (keyHolds[key]++ == 0) { showHeld(key, true); }
+        sustained[key >> 6] &= ~(1L << key);
+        return true;
+    }
+
+    /**
+     * Picks the voice to cut off when the pool is full: the quietest releasing voice,
+     * or the oldest voice if none is releasing. This is the one scan over the voices left
+     * when starting a note, and it only runs when every voice is taken.
+     * @return the pool index of the voice, which stays in the active list
+     */
+    private int stealVoice() {
+        int quietest = -1;
+        int oldest = active[0];
+        for (int i = 0; i < activeCount; i++) {
+            Voice voice = pool[active[i]];
+            if (voice.isReleasing() && (quietest == -1 || voice.getGain() < pool[quietest].getGain())) {
+                quietest = active[i];
+            }
+            if (voice.serial < pool[oldest].serial) {
+                oldest = active[i];
+            }
+        }
+        return quietest != -1 ? quietest : oldest;
+    }
+
+    /**
+     * Forgets a voice that stopped or was stolen, if it is still its key's newest voice.
+     * The key stays held; letting go of it later simply finds nothing to release.
+     * @param slot the pool index of the voice
+     */
+    private void detach(int slot) {
+        int key = pool[slot].key;
+        if (keyVoice[key] == slot) {
+            keyVoice[key] = -1;
+            sustained[key >> 6] &= ~(1L << key);
+        }
+    }
+
+    /**
+     * Lets go of a key. Audio thread only.
+     * @return false if the key was not held
+     */
+    boolean releaseVoice(int key) {
+        if (key < 0 || key >= MAX_KEYS || keyHolds[key] == 0) { return false; }
+        if (--keyHolds[key] > 0) { return true; } // still held from somewhere else
+        showHeld(key, false);
+        if (sustain) {
+            sustained[key >> 6] |= 1L << key;
+        } else {
+            releaseKey(key);
+        }
+        return true;
+    }
+
+    private void releaseKey(int key) {
+        int slot = keyVoice[key];
+        if (slot != -1) {
+            pool[slot].release();
+            keyVoice[key] = -1;
+        }
+    }
+
+    /**
+     * Presses or lifts the sustain pedal. Audio thread only.
+     */
+    void setPedal(boolean down) {
+        sustain = down;
+        if (down) { return; }
+        for (int word = 0; word < sustained.length; word++) {
+            long bits = sustained[word];
+            while (bits != 0) {
+                int key = word << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                releaseKey(key);
+            }
+            sustained[word] = 0;
+        }
+    }
+
+    private void releaseAll() {
+        for (int i = 0; i < activeCount; i++) {
+            pool[active[i]].release();
+        }
+        Arrays.fill(keyVoice, -1);
+        Arrays.fill(keyHolds, 0);
+        Arrays.fill(sustained, 0);
+        for (int word = 0; word < heldKeys.length(); word++) {
+            heldKeys.lazySet(word, 0);
+        }
+    }
+
+    /**
+     * Sets or clears a key in the bitset other threads read. Only the audio thread writes it.
+     */
+    private void showHeld(int key, boolean held) {
+        int word = key >> 6;
+        long bits = heldKeys.get(word);
+        heldKeys.lazySet(word, held ? bits | 1L << key : bits & ~(1L << key));
+    }
+
+    /**
+     * Copies the keys held down, from any source, into a bitset: key k is bit k % 64 of word k / 64.
+     * Keys only ringing on through the sustain pedal or their release are not included.
+     * @param into at least MAX_KEYS / 64 words
+     */
+    public void getHeldKeys(long[] into) {
+        for (int word = 0; word < heldKeys.length(); word++) {
+            into[word] = heldKeys.get(word);
+        }
+    }
+
+    /**
+     * Applies waiting events and mixes the next block of all sounding voices into an interleaved
+     * stereo buffer. Only one thread may render, normally the mixer thread started by start().
+     * @param out the buffer to fill, at least frames * CHANNELS long
+     * @param frames the number of frames to render
+     */
+    public void render(float[] out, int frames) {
+        if (frames > bufferFrames) { throw new IllegalArgumentException("frames > bufferFrames"); }
+        blockStart = System.nanoTime();
+        drainEvents();
+        for (int done = 0; done < frames; ) {
+            int n = looper.advance(frameClock + done, frames - done);
+            if (done == 0) {
+                mixVoices(out, n);
+            } else {
+                mixVoices(partBuffer, n);
+                System.arraycopy(partBuffer, 0, out, done * CHANNELS, n * CHANNELS);
+            }
+            done += n;
+        }
+        frameClock += frames;
+        voicesSounding = activeCount;
+        applyVolume(out, frames);
+        effects.process(out, frames);
+        metrics.blockRendered(System.nanoTime() - blockStart, frames, activeCount);
+    }
+
+    /**
+     * Scales a block by the master volume, gliding from the volume of the last block if it changed.
+     */
+    private void applyVolume(float[] out, int frames) {
+        if (masterVolume == appliedVolume) {
+            MixKernel.INSTANCE.scale(out, masterVolume, frames * CHANNELS);
+            return;
+        }
+        float step = (masterVolume - appliedVolume) / frames;
+        for (int i = 0; i < frames; i++) {
+            float gain = appliedVolume + step * (i + 1);
+            out[i * 2] *= gain;
+            out[i * 2 + 1] *= gain;
+        }
+        appliedVolume = masterVolume;
+    }
+
+    /**
+     * Mixes the next frames of every sounding voice into the start of out, overwriting it,
+     * and frees the voices that have finished.
+     */
+    private void mixVoices(float[] out, int frames) {
+        if (parallel != null && activeCount >= PARALLEL_THRESHOLD) {
+            boolean[] alive = parallel.mix(pool, active, activeCount, out, frames);
+            for (int i = activeCount - 1; i >= 0; i--) { // backwards, so the voice swapped in is already checked
+                if (!alive[i]) {
+                    detach(active[i]);
+                    free[freeCount++] = active[i];
+                    active[i] = active[--activeCount];
+                }
+            }
+        } else {
+            Arrays.fill(out, 0, frames * CHANNELS, 0f);
+            for (int i = 0; i < activeCount; ) {
+                if (pool[active[i]].mix(out, scratch, envBuffer, frames)) {
+                    i++;
+                } else {
+                    detach(active[i]);
+                    free[freeCount++] = active[i];
+                    active[i] = active[--activeCount];
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts float samples to 16 bit little-endian PCM, clipping anything outside -1..1.
+     * @param in interleaved stereo samples
+     * @param out the bytes to write, four per frame
+     * @param frames the number of frames to convert
+     */
+    public static void toPcm16(float[] in, byte[] out, int frames) {
+        MixKernel.INSTANCE.toPcm16(in, out, frames);
+    }
+
+    /**
+     * @return the name of the mix kernel in use, "scalar" or the width of the vectors used
+     */
+    public static String getMixKernel() {
+        return MixKernel.INSTANCE.getName();
+    }
+
+    /**
+     * @return the engine's counters, also available over JMX once registered
+     */
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of voices currently sounding
+     */
+    public int getActiveVoices() {
+        return voicesSounding;
+    }
+
+    /**
+     * @return the number of events dropped because a queue was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return the number of voices in the pool
+     */
+    public int getMaxVoices() {
+        return maxVoices;
+    }
+
+    /**
+     * @return frames per rendered block
+     */
+    public int getBufferFrames() {
+        return bufferFrames;
+    }
+}
@@ -0,0 +1,111 @@
+package padman.vinnsla;
+
+/**
+ A Biquad is a two-pole, two-zero filter with separate memory for the left and right channel,
+ in transposed direct form II. The coefficients are the shelving and peaking filters of Robert
+ Bristow-Johnson's Audio EQ Cookbook, normalised so a0 is 1. Changing them keeps the memory, so a
+ gain moved a little each block glides without clicks.
+ */
+class Biquad {
+    private float b0 = 1f, b1, b2, a1, a2;
+    private float z1Left, z2Left, z1Right, z2Right;
+
+    /**
+     * Boosts or cuts everything below a frequency, with a shelf slope of 1.
+     * @param frequency the middle of the slope in Hz
+     * @param gainDb the gain of the shelf
+     */
+    void lowShelf(double frequency, double gainDb) {
+        double a = Math.pow(10, gainDb / 40);
+        double w = 2 * Math.PI * frequency / AudioEngine.SAMPLE_RATE;
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / 2 * Math.sqrt(2);
+        double root = 2 * Math.sqrt(a) * alpha;
+        set(a * ((a + 1) - (a - 1) * cos + root),
+                2 * a * ((a - 1) - (a + 1) * cos),
+                a * ((a + 1) - (a - 1) * cos - root),
+                (a + 1) + (a - 1) * cos + root,
+                -2 * ((a - 1) + (a + 1) * cos),
+                (a + 1) + (a - 1) * cos - root);
+    }
+
+    /**
+     * Boosts or cuts everything above a frequency, with a shelf slope of 1.
+     * @param frequency the middle of the slope in Hz
+     * @param gainDb the gain of the shelf
+     */
+    void highShelf(double frequency, double gainDb) {
+        double a = Math.pow(10, gainDb / 40);
+        double w = 2 * Math.PI * frequency / AudioEngine.SAMPLE_RATE;
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / 2 * Math.sqrt(2);
+        double root = 2 * Math.sqrt(a) * alpha;
+        set(a * ((a + 1) + (a - 1) * cos + root),
+                -2 * a * ((a - 1) + (a + 1) * cos),
+                a * ((a + 1) + (a - 1) * cos - root),
+                (a + 1) - (a - 1) * cos + root,
+                2 * ((a - 1) - (a + 1) * cos),
+                (a + 1) - (a - 1) * cos - root);
+    }
+
+    /**
+     * Boosts or cuts a band around a frequency.
+     * @param frequency the centre of the band in Hz
+     * @param q the sharpness of the band, higher is narrower
+     * @param gainDb the gain at the centre
+     */
+    void peak(double frequency, double q, double gainDb) {
+        double a = Math.pow(10, gainDb / 40);
+        double w = 2 * Math.PI * frequency / AudioEngine.SAMPLE_RATE;
+        double cos = Math.cos(w);
+        double alpha = Math.sin(w) / (2 * q);
+        set(1 + alpha * a, -2 * cos, 1 - alpha * a, 1 + alpha / a, -2 * cos, 1 - alpha / a);
+    }
+
+    private void set(double b0, double b1, double b2, double a0, double a1, double a2) {
+        this.b0 = (float) (b0 / a0);
+        this.b1 = (float) (b1 / a0);
+        this.b2 = (float) (b2 / a0);
+        this.a1 = (float) (a1 / a0);
+        this.a2 = (float) (a2 / a0);
+    }
+
+    /**
+     * Clears the filter memory.
+     */
+    void reset() {
+        z1Left = z2Left = z1Right = z2Right = 0f;
+    }
+
+    /**
+     * Filters a block in place.
+     * @param buffer interleaved stereo samples
+     * @param frames the number of frames
+     */
+    void process(float[] buffer, int frames) {
+        float z1l = z1Left, z2l = z2Left, z1r = z1Right, z2r = z2Right;
+        for (int i = 0; i < frames * 2; i += 2) {
+            float x = buffer[i];
+            float y = b0 * x + z1l;
+            z1l = b1 * x - a1 * y + z2l;
+            z2l = b2 * x - a2 * y;
+            buffer[i] = y;
+            x = buffer[i + 1];
+            y = b0 * x + z1r;
+            z1r = b1 * x - a1 * y + z2r;
+            z2r = b2 * x - a2 * y;
+            buffer[i + 1] = y;
+        }
+        z1Left = flush(z1l);
+        z2Left = flush(z2l);
+        z1Right = flush(z1r);
+        z2Right = flush(z2r);
+    }
+
+    /**
+     * @return x, or 0 if it is so small it would soon be a denormal, which x86 processors are slow with
+     */
+    static float flush(float x) {
+        return x + 1e-18f - 1e-18f;
+    }
+}
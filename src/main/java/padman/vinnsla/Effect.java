@@ -0,0 +1,123 @@
+package padman.vinnsla;
+
+/**
+ An Effect processes the mixed output of the AudioEngine in place, one block at a time, as a
+ stage of the engine's EffectChain. Effects run on the audio thread and allocate nothing once
+ prepared: every buffer and delay line they need is made in prepare or the constructor.
+ <p>
+ Parameters are SmoothedValues, numbered in the order given to the constructor, and are changed
+ through AudioEngine.setEffectParameter like every other engine setting. A bypassed effect is
+ skipped altogether, so it costs nothing; switching it on or off crossfades over one block.
+ <p>
+ The chain times every block an effect processes; the timings are read with getAverageNanos and
+ getTimeP99 from any thread.
+ */
+public abstract class Effect {
+    private static final int BUCKETS = 24; // up to about 4 ms in nanoseconds
+
+    private final String name;
+    private final SmoothedValue[] parameters;
+    private final Histogram time = new Histogram(BUCKETS);
+    private volatile double averageNanos = 0;
+    private volatile boolean bypassed = false; // what was asked for
+    boolean running = false; // whether the chain is processing it, audio thread only
+
+    /**
+     * @param name the name shown in metrics
+     * @param parameters the effect's parameters, numbered from 0 in this order
+     */
+    protected Effect(String name, SmoothedValue... parameters) {
+        this.name = name;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Makes the buffers the effect needs. Called once, before the effect is added to a chain.
+     * @param maxFrames the largest block the effect will be given
+     */
+    protected void prepare(int maxFrames) { }
+
+    /**
+     * Clears the effect's state, such as delay lines and filter memory, and works out everything
+     * derived from its parameters. Called on the audio thread when the effect is switched on.
+     */
+    protected abstract void reset();
+
+    /**
+     * Processes a block in place. Audio thread only.
+     * @param buffer interleaved stereo samples
+     * @param frames the number of frames to process, at most the maxFrames given to prepare
+     */
+    protected abstract void process(float[] buffer, int frames);
+
+    /**
+     * @param index the number of the parameter
+     * @return the parameter
+     */
+    protected final SmoothedValue parameter(int index) {
+        return parameters[index];
+    }
+
+    /**
+     * @return the number of parameters
+     */
+    public final int getParameterCount() {
+        return parameters.length;
+    }
+
+    /**
+     * @return the name shown in metrics
+     */
+    public final String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the effect is switched off, or will be after the current block
+     */
+    public final boolean isBypassed() {
+        return bypassed;
+    }
+
+    /**
+     * @return the average time the effect took per block over recent blocks, in nanoseconds
+     */
+    public final double getAverageNanos() {
+        return averageNanos;
+    }
+
+    /**
+     * @return the upper bound of the time 99% of the blocks took, in nanoseconds
+     */
+    public final long getTimeP99() {
+        return time.percentile(0.99);
+    }
+
+    // audio thread
+
+    void setBypassed(boolean bypassed) {
+        this.bypassed = bypassed;
+    }
+
+    void advanceParameters(float coefficient) {
+        for (SmoothedValue parameter : parameters) {
+            parameter.advance(coefficient);
+        }
+    }
+
+    void settleParameters() {
+        for (SmoothedValue parameter : parameters) {
+            parameter.settle();
+        }
+    }
+
+    void timed(long nanos) {
+        time.record(nanos);
+        averageNanos += (nanos - averageNanos) * 0.05; // about the last 20 blocks
+    }
+
+    void clearTimes() {
+        time.clear();
+        averageNanos = 0;
+    }
+}
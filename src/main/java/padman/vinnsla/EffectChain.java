@@ -0,0 +1,137 @@
+package padman.vinnsla;
+
+import java.util.Arrays;
+
+/**
+ The EffectChain runs the AudioEngine's master effects over every mixed block, after the master
+ volume and before the conversion to 16 bit, in the order they were added. Effects are numbered
+ from 0 in that order.
+ <p>
+ Effects can be added from any thread while the engine runs: the array of effects is replaced,
+ never changed, so the audio thread always sees a whole chain. Everything else happens on the
+ audio thread. Each block it moves every parameter towards its target, skips bypassed effects
+ without so much as reading the clock, and times each effect it runs.
+ <p>
+ Switching an effect on clears its state and fades it in over one block; switching it off fades
+ it out over one block and then stops running it. The fades need a copy of the block before the
+ effect, which is the only extra work and only happens in those two blocks.
+ */
+public class EffectChain {
+    private static final float SMOOTHING_SECONDS = 0.015f; // parameters get within 1/e of a new setting in this time
+
+    private final int maxFrames;
+    private final float[] dry; // the block before an effect that is fading in or out
+    private volatile Effect[] effects = {};
+
+    /**
+     * @param maxFrames the largest block the chain will be given
+     */
+    EffectChain(int maxFrames) {
+        this.maxFrames = maxFrames;
+        this.dry = new float[maxFrames * AudioEngine.CHANNELS];
+    }
+
+    /**
+     * Prepares an effect and adds it to the end of the chain.
+     * @param effect the effect, which the chain owns from now on
+     * @param bypassed true to add it switched off
+     * @return the number of the effect in the chain
+     */
+    public synchronized int add(Effect effect, boolean bypassed) {
+        effect.prepare(maxFrames);
+        effect.setBypassed(bypassed);
+        Effect[] grown = Arrays.copyOf(effects, effects.length + 1);
+        grown[effects.length] = effect;
+        effects = grown;
+        return effects.length - 1;
+    }
+
+    /**
+     * @param index the number of the effect
+     * @return the effect
+     */
+    public Effect get(int index) {
+        return effects[index];
+    }
+
+    /**
+     * @return the number of effects in the chain
+     */
+    public int size() {
+        return effects.length;
+    }
+
+    // audio thread
+
+    /**
+     * Sets the target of an effect parameter, ignoring effects and parameters that do not exist. Audio thread only.
+     */
+    void setParameter(int effect, int parameter, float value) {
+        Effect[] chain = effects;
+        if (effect < 0 || effect >= chain.length) { return; }
+        if (parameter < 0 || parameter >= chain[effect].getParameterCount()) { return; }
+        chain[effect].parameter(parameter).set(value);
+    }
+
+    /**
+     * Switches an effect on or off from the next block. Audio thread only.
+     */
+    void setBypassed(int effect, boolean bypassed) {
+        Effect[] chain = effects;
+        if (effect >= 0 && effect < chain.length) { chain[effect].setBypassed(bypassed); }
+    }
+
+    /**
+     * Runs every effect that is switched on over a block. Audio thread only.
+     * @param buffer interleaved stereo samples
+     * @param frames the number of frames
+     */
+    void process(float[] buffer, int frames) {
+        float coefficient = -1f;
+        for (Effect effect : effects) {
+            boolean on = !effect.isBypassed();
+            if (!on && !effect.running) { continue; }
+            long start = System.nanoTime();
+            if (coefficient < 0) { coefficient = (float) -Math.expm1(-frames / (SMOOTHING_SECONDS * AudioEngine.SAMPLE_RATE)); }
+            boolean fade = on != effect.running;
+            if (fade) {
+                System.arraycopy(buffer, 0, dry, 0, frames * AudioEngine.CHANNELS);
+                if (on) {
+                    effect.settleParameters();
+                    effect.reset();
+                }
+            } else {
+                effect.advanceParameters(coefficient);
+            }
+            effect.process(buffer, frames);
+            if (fade) {
+                crossfade(buffer, frames, on);
+                effect.running = on;
+            }
+            effect.timed(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Fades from the block before the effect to the block after it, or the other way round.
+     * @param in true to fade the effect in
+     */
+    private void crossfade(float[] buffer, int frames, boolean in) {
+        for (int i = 0; i < frames; i++) {
+            float wet = (i + 1) / (float) frames;
+            if (!in) { wet = 1f - wet; }
+            int l = i * 2;
+            buffer[l] = dry[l] + (buffer[l] - dry[l]) * wet;
+            buffer[l + 1] = dry[l + 1] + (buffer[l + 1] - dry[l + 1]) * wet;
+        }
+    }
+
+    /**
+     * Clears the timings of every effect. Audio thread only.
+     */
+    void clearTimes() {
+        for (Effect effect : effects) {
+            effect.clearTimes();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package padman.vinnsla;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+/**
+ EngineMetrics counts what the AudioEngine's audio thread is doing: voices sounding and stolen,
+ how long each block takes to render, device buffer underruns and how long after a key event
+ its note becomes audible. It can be registered as a JMX MBean and read from any thread.
+ <p>
+ Only the audio thread writes the counters, so they are plain volatile fields and Histograms
+ written without locks or allocation. A reset asked for from another thread is carried out by the
+ audio thread at the end of its next block, so there is never a second writer.
+ <p>
+ Note latency is measured from the moment the event was posted to the moment the block it starts
+ in reaches the sound card, that is the end of the frames already waiting in the output line.
+ It does not include the operating system mixer.
+ <p>
+ Each effect in the engine's EffectChain times its own blocks; those timings are reported here
+ too, by effect, in microseconds, and cleared along with everything else.
+ */
+public class EngineMetrics implements EngineMetricsMBean {
+    private static final int BUCKETS = 24; // up to about 8 s in microseconds
+
+    private final AudioEngine engine;
+    private final Histogram renderTime = new Histogram(BUCKETS);
+    private final Histogram noteLatency = new Histogram(BUCKETS);
+    private volatile long blocks = 0;
+    private volatile long stolen = 0;
+    private volatile long underruns = 0;
+    private volatile int peakVoices = 0;
+    private volatile double cpuLoad = 0;
+    private volatile boolean resetWanted = false;
+    private volatile LongSupplier sampleBytes = () -> 0;
+
+    /**
+     * @param engine the engine measured
+     */
+    EngineMetrics(AudioEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     * @param name the object name, for instance "padman:type=AudioEngine"
+     * @throws JMException if the name is taken or not valid
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    /**
+     * @param sampleBytes tells how many bytes the loaded samples take
+     */
+    public void setSampleBytes(LongSupplier sampleBytes) {
+        this.sampleBytes = sampleBytes;
+    }
+
+    // audio thread
+
+    /**
+     * Records a rendered block. Audio thread only.
+     */
+    void blockRendered(long nanos, int frames, int voices) {
+        renderTime.record(nanos / 1000);
+        blocks++;
+        if (voices > peakVoices) { peakVoices = voices; }
+        double load = nanos / (frames * 1e9 / AudioEngine.SAMPLE_RATE);
+        cpuLoad += (load - cpuLoad) * 0.05; // about the last 20 blocks
+        if (resetWanted) {
+            renderTime.clear();
+            noteLatency.clear();
+            blocks = 0;
+            stolen = 0;
+            underruns = 0;
+            peakVoices = voices;
+            engine.getEffects().clearTimes();
+            resetWanted = false;
+        }
+    }
+
+    /**
+     * Records a voice cut off to make room for a new note. Audio thread only.
+     */
+    void voiceStolen() {
+        stolen++;
+    }
+
+    /**
+     * Records how long after its event a note became audible. Audio thread only.
+     */
+    void noteStarted(long latencyNanos) {
+        noteLatency.record(latencyNanos / 1000);
+    }
+
+    /**
+     * Records the output line running empty before the next block was written. Audio thread only.
+     */
+    void underrun() {
+        underruns++;
+    }
+
+    // management interface
+
+    @Override
+    public int getActiveVoices() {
+        return engine.getActiveVoices();
+    }
+
+    @Override
+    public int getPeakVoices() {
+        return peakVoices;
+    }
+
+    @Override
+    public int getMaxVoices() {
+        return engine.getMaxVoices();
+    }
+
+    @Override
+    public long getVoicesStolen() {
+        return stolen;
+    }
+
+    @Override
+    public long getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return engine.getDroppedEvents();
+    }
+
+    /**
+     * @return the share of each block's playing time spent rendering it, averaged over recent blocks
+     */
+    @Override
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    @Override
+    public long getRenderTimeP50() {
+        return renderTime.percentile(0.5);
+    }
+
+    @Override
+    public long getRenderTimeP99() {
+        return renderTime.percentile(0.99);
+    }
+
+    @Override
+    public long getRenderTimeMax() {
+        return renderTime.getMax();
+    }
+
+    @Override
+    public long[] getRenderTimeHistogram() {
+        return renderTime.snapshot();
+    }
+
+    @Override
+    public long getNoteLatencyP50() {
+        return noteLatency.percentile(0.5);
+    }
+
+    @Override
+    public long getNoteLatencyP99() {
+        return noteLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getNoteLatencyMax() {
+        return noteLatency.getMax();
+    }
+
+    @Override
+    public long[] getNoteLatencyHistogram() {
+        return noteLatency.snapshot();
+    }
+
+    @Override
+    public String[] getEffectNames() {
+        EffectChain effects = engine.getEffects();
+        String[] names = new String[effects.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = effects.get(i).getName();
+        }
+        return names;
+    }
+
+    /**
+     * @return the average time each effect took per block over recent blocks, 0 for a bypassed effect
+     */
+    @Override
+    public double[] getEffectTimes() {
+        EffectChain effects = engine.getEffects();
+        double[] times = new double[effects.size()];
+        for (int i = 0; i < times.length; i++) {
+            Effect effect = effects.get(i);
+            times[i] = effect.isBypassed() ? 0 : effect.getAverageNanos() / 1000;
+        }
+        return times;
+    }
+
+    @Override
+    public long[] getEffectTimesP99() {
+        EffectChain effects = engine.getEffects();
+        long[] times = new long[effects.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = effects.get(i).getTimeP99() / 1000;
+        }
+        return times;
+    }
+
+    @Override
+    public long getSampleBytes() {
+        return sampleBytes.getAsLong();
+    }
+
+    /**
+     * Clears the counters and histograms at the end of the next block.
+     */
+    @Override
+    public void reset() {
+        resetWanted = true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder effects = new StringBuilder();
+        String[] names = getEffectNames();
+        double[] times = getEffectTimes();
+        for (int i = 0; i < names.length; i++) {
+            if (times[i] > 0) { effects.append(String.format("  %s %.1f us", names[i], times[i])); }
+        }
+        return String.format("voices %d/%d  stolen %d  render p99 %d us  load %.0f%%  underruns %d  latency p50 %.1f ms  samples %d MB%s",
+                getActiveVoices(), getMaxVoices(), stolen, getRenderTimeP99(), cpuLoad * 100, underruns,
+                getNoteLatencyP50() / 1000.0, getSampleBytes() >> 20, effects);
+    }
+}
@@ -0,0 +1,49 @@
+package padman.vinnsla;
+
+/**
+ The management interface of EngineMetrics, as seen in JConsole or VisualVM.
+ Times are in microseconds.
+ */
+public interface EngineMetricsMBean {
+    int getActiveVoices();
+
+    int getPeakVoices();
+
+    int getMaxVoices();
+
+    long getVoicesStolen();
+
+    long getBlocks();
+
+    long getUnderruns();
+
+    long getDroppedEvents();
+
+    double getCpuLoad();
+
+    long getRenderTimeP50();
+
+    long getRenderTimeP99();
+
+    long getRenderTimeMax();
+
+    long[] getRenderTimeHistogram();
+
+    long getNoteLatencyP50();
+
+    long getNoteLatencyP99();
+
+    long getNoteLatencyMax();
+
+    long[] getNoteLatencyHistogram();
+
+    String[] getEffectNames();
+
+    double[] getEffectTimes();
+
+    long[] getEffectTimesP99();
+
+    long getSampleBytes();
+
+    void reset();
+}
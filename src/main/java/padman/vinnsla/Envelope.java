@@ -0,0 +1,140 @@
+package padman.vinnsla;
+
+/**
+ An Envelope is the attack/decay/sustain/release gain curve of one Voice, computed for every
+ sample frame inside the mix loop. Each stage is a segment of a fixed number of frames that
+ moves the level to a target, either in a straight line or along an exponential curve.
+ <p>
+ render() writes a whole block of levels into a float array, straight-line segments with the
+ MixKernel, so the mixer can apply them with one vectorized multiply-add. Exponential segments
+ are a running product and stay a scalar loop.
+ */
+class Envelope {
+    static final int IDLE = 0;
+    static final int ATTACK = 1;
+    static final int DECAY = 2;
+    static final int SUSTAIN = 3;
+    static final int RELEASE = 4;
+
+    private static final float CURVE_FLOOR = 1e-4f; // -80 dB, where an exponential segment snaps to its target
+
+    /**
+     The envelope times shared by every voice of an engine. Only the audio thread reads or writes them.
+     */
+    static class Settings {
+        int attackFrames = (int) (0.002 * AudioEngine.SAMPLE_RATE);
+        int decayFrames = 0;
+        float sustainLevel = 1f;
+        int releaseFrames = (int) (0.85 * AudioEngine.SAMPLE_RATE);
+        boolean exponential = false;
+    }
+
+    private final Settings settings;
+    private int stage = IDLE;
+    private float level = 0f;
+    private float target;
+    private int remaining; // frames left in the current segment
+    private float step; // added per frame on a linear segment
+    private float coef; // distance to target is multiplied by this per frame on an exponential segment
+    private boolean curved;
+
+    Envelope(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Starts the attack from silence.
+     */
+    void noteOn() {
+        level = 0f;
+        enter(ATTACK, 1f, settings.attackFrames, false);
+    }
+
+    /**
+     * Starts the release from the current level.
+     */
+    void noteOff() {
+        if (stage == IDLE || stage == RELEASE) { return; }
+        enter(RELEASE, 0f, settings.releaseFrames, settings.exponential);
+    }
+
+    private void enter(int stage, float target, int frames, boolean curved) {
+        this.stage = stage;
+        this.target = target;
+        this.curved = curved;
+        this.remaining = Math.max(1, frames);
+        this.step = (target - level) / remaining;
+        this.coef = (float) Math.pow(CURVE_FLOOR, 1.0 / remaining);
+    }
+
+    private void next() {
+        level = target;
+        switch (stage) {
+            case ATTACK -> enter(DECAY, settings.sustainLevel, settings.decayFrames, settings.exponential);
+            case DECAY -> stage = settings.sustainLevel > 0f ? SUSTAIN : IDLE;
+            case RELEASE -> stage = IDLE;
+            default -> { }
+        }
+    }
+
+    /**
+     * Writes the level for each of the next frames into env.
+     * @param env the buffer to fill
+     * @param frames the number of frames wanted
+     * @return the number of frames written before the envelope went silent, at most frames
+     */
+    int render(float[] env, int frames) {
+        int i = 0;
+        while (i < frames) {
+            if (stage == IDLE) {
+                return i;
+            }
+            if (stage == SUSTAIN) {
+                for (; i < frames; i++) {
+                    env[i] = level;
+                }
+                return frames;
+            }
+            int n = Math.min(frames - i, remaining);
+            if (curved) {
+                float distance = level - target;
+                for (int k = 0; k < n; k++) {
+                    distance *= coef;
+                    env[i + k] = target + distance;
+                }
+                level = target + distance;
+            } else {
+                float start = level;
+                MixKernel.INSTANCE.ramp(env, i, start, step, n);
+                level = start + step * n;
+            }
+            i += n;
+            remaining -= n;
+            if (remaining == 0) {
+                next();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return true if the level stays the same until the next note on or note off
+     */
+    boolean isSteady() {
+        return stage == SUSTAIN;
+    }
+
+    /**
+     * @return the current stage, one of IDLE, ATTACK, DECAY, SUSTAIN or RELEASE
+     */
+    int getStage() {
+        return stage;
+    }
+
+    /**
+     * @return the current level between 0 and 1
+     */
+    float getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,61 @@
+package padman.vinnsla;
+
+/**
+ A three band equalizer: a low shelf at 200 Hz, a bell at 1 kHz and a high shelf at 5 kHz,
+ each boosting or cutting by up to 12 dB. A band at 0 dB is flat and is not run at all.
+ The filter coefficients are worked out again only in blocks where a gain is still gliding.
+ */
+public class Equalizer extends Effect {
+    /** Parameter: gain of the low shelf in dB, -12 to 12. */
+    public static final int LOW = 0;
+    /** Parameter: gain of the 1 kHz band in dB, -12 to 12. */
+    public static final int MID = 1;
+    /** Parameter: gain of the high shelf in dB, -12 to 12. */
+    public static final int HIGH = 2;
+
+    private static final double LOW_FREQUENCY = 200;
+    private static final double MID_FREQUENCY = 1000;
+    private static final double MID_Q = 0.7;
+    private static final double HIGH_FREQUENCY = 5000;
+
+    private final Biquad[] bands = { new Biquad(), new Biquad(), new Biquad() };
+    private final boolean[] bandOn = new boolean[bands.length];
+
+    /**
+     * Creates a flat equalizer.
+     */
+    public Equalizer() {
+        super("EQ", new SmoothedValue(0f, -12f, 12f), new SmoothedValue(0f, -12f, 12f), new SmoothedValue(0f, -12f, 12f));
+    }
+
+    @Override
+    protected void reset() {
+        for (int band = 0; band < bands.length; band++) {
+            bands[band].reset();
+            design(band);
+            bandOn[band] = parameter(band).get() != 0f;
+        }
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        for (int band = 0; band < bands.length; band++) {
+            SmoothedValue gain = parameter(band);
+            boolean on = gain.get() != 0f;
+            if (on && !bandOn[band]) { bands[band].reset(); } // its memory is from when it last ran
+            bandOn[band] = on;
+            if (!on) { continue; }
+            if (gain.isMoving()) { design(band); }
+            bands[band].process(buffer, frames);
+        }
+    }
+
+    private void design(int band) {
+        double gain = parameter(band).get();
+        switch (band) {
+            case LOW -> bands[band].lowShelf(LOW_FREQUENCY, gain);
+            case MID -> bands[band].peak(MID_FREQUENCY, MID_Q, gain);
+            default -> bands[band].highShelf(HIGH_FREQUENCY, gain);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package padman.vinnsla;
+
+/**
+ An EventLog records what is played: every note on, note off and sustain pedal event the
+ AudioEngine applies, with the key it played (the sample index, after transposition and the
+ major/minor switch), its velocity gain, the System.nanoTime it was sent at and the output frame
+ it belongs to. The Looper cuts its takes out of the log.
+ <p>
+ The log is a ring buffer of preallocated parallel arrays, written only by the audio thread, so
+ recording allocates nothing and takes no lock. Once it is full the oldest events are overwritten.
+ Events are numbered from 0 in the order they were recorded; an event can be read back as long as
+ fewer than capacity events have been recorded after it.
+ */
+public class EventLog {
+    private final int capacity;
+    private final int mask;
+    private final int[] types;
+    private final int[] keys;
+    private final float[] values;
+    private final Sample[] samples;
+    private final long[] times;
+    private final long[] frames;
+    private volatile long written = 0; // events recorded so far, only moved by the audio thread
+
+    /**
+     * Creates an empty log.
+     * @param capacity the number of events kept, rounded up to a power of two
+     */
+    public EventLog(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = this.capacity - 1;
+        types = new int[this.capacity];
+        keys = new int[this.capacity];
+        values = new float[this.capacity];
+        samples = new Sample[this.capacity];
+        times = new long[this.capacity];
+        frames = new long[this.capacity];
+    }
+
+    /**
+     * Records an event. Audio thread only.
+     * @param type EventQueue.NOTE_ON, NOTE_OFF or SUSTAIN
+     * @param key the key, for notes
+     * @param value the velocity gain of a note on, 1 or 0 for the pedal
+     * @param sample the sample a note on plays, otherwise null
+     * @param time the System.nanoTime the event was sent at
+     * @param frame the output frame the event belongs to
+     */
+    void record(int type, int key, float value, Sample sample, long time, long frame) {
+        int i = (int) written & mask;
+        types[i] = type;
+        keys[i] = key;
+        values[i] = value;
+        samples[i] = sample;
+        times[i] = time;
+        frames[i] = frame;
+        written++;
+    }
+
+    /**
+     * @return the number of events recorded since the log was created, including overwritten ones
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return the number of events the log keeps
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of the oldest event that can still be read
+     */
+    public long getOldest() {
+        return Math.max(0, written - capacity);
+    }
+
+    /**
+     * @return the type of an event, EventQueue.NOTE_ON, NOTE_OFF or SUSTAIN
+     */
+    public int type(long event) {
+        return types[(int) event & mask];
+    }
+
+    /**
+     * @return the key of a note event
+     */
+    public int key(long event) {
+        return keys[(int) event & mask];
+    }
+
+    /**
+     * @return the velocity gain of a note on, 1 or 0 for the pedal
+     */
+    public float value(long event) {
+        return values[(int) event & mask];
+    }
+
+    Sample sample(long event) {
+        return samples[(int) event & mask];
+    }
+
+    /**
+     * @return the System.nanoTime the event was sent at
+     */
+    public long time(long event) {
+        return times[(int) event & mask];
+    }
+
+    /**
+     * @return the output frame the event belongs to, counted from the engine's first block
+     */
+    public long frame(long event) {
+        return frames[(int) event & mask];
+    }
+}
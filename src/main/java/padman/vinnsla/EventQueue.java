@@ -0,0 +1,163 @@
+package padman.vinnsla;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ An EventQueue carries note and parameter events from one producer thread (the JavaFX thread,
+ a MIDI callback, ...) to the audio thread. It is a single-producer/single-consumer ring buffer:
+ events are written into preallocated parallel arrays and published by moving the tail index,
+ so neither side ever takes a lock or allocates.
+ <p>
+ The audio thread reads events with poll(), which loads the next event into the type(), key(),
+ value() and sample() fields until the next call. Every event is stamped with System.nanoTime
+ when it is offered, for measuring latency.
+ */
+public class EventQueue {
+    public static final int NOTE_ON = 1;
+    public static final int NOTE_OFF = 2;
+    public static final int ALL_NOTES_OFF = 3;
+    public static final int VOLUME = 4;
+    public static final int RELEASE_TIME = 5;
+    public static final int ATTACK_TIME = 6;
+    public static final int DECAY_TIME = 7;
+    public static final int SUSTAIN_LEVEL = 8;
+    public static final int ENVELOPE_CURVE = 9;
+    public static final int SUSTAIN = 10;
+    public static final int LOOP = 11;
+    public static final int LOOP_STOP = 12;
+    public static final int LOOP_UNDO = 13;
+    public static final int LOOP_LOAD = 14;
+    public static final int STEREO_WIDTH = 15;
+    public static final int EFFECT_PARAMETER = 16;
+    public static final int EFFECT_BYPASS = 17;
+    public static final int LOOP_COPY = 18;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] types;
+    private final int[] keys;
+    private final float[] values;
+    private final Sample[] samples;
+    private final long[] times;
+    private final AtomicLong head = new AtomicLong(); // next slot to read, only moved by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to write, only moved by the producer
+    private long cachedHead = 0; // producer's last look at head
+    private long cachedTail = 0; // consumer's last look at tail
+    private volatile boolean closed = false;
+
+    private int type;
+    private int key;
+    private float value;
+    private Sample sample;
+    private long time;
+
+    /**
+     * Creates a queue.
+     * @param capacity the number of events it can hold, rounded up to a power of two
+     */
+    public EventQueue(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = this.capacity - 1;
+        types = new int[this.capacity];
+        keys = new int[this.capacity];
+        values = new float[this.capacity];
+        samples = new Sample[this.capacity];
+        times = new long[this.capacity];
+    }
+
+    /**
+     * Adds an event. Only one thread may call this.
+     * @param type the event type
+     * @param key the key the event is for, if any
+     * @param value the event's value, if any; the velocity gain for NOTE_ON
+     * @param sample the sample to play for NOTE_ON, otherwise null
+     * @return false if the queue was full and the event was dropped
+     */
+    public boolean offer(int type, int key, float value, Sample sample) {
+        long t = tail.get();
+        if (t - cachedHead >= capacity) {
+            cachedHead = head.get();
+            if (t - cachedHead >= capacity) { return false; }
+        }
+        int i = (int) t & mask;
+        types[i] = type;
+        keys[i] = key;
+        values[i] = value;
+        samples[i] = sample;
+        times[i] = System.nanoTime();
+        tail.lazySet(t + 1); // publishes the writes above to the consumer
+        return true;
+    }
+
+    /**
+     * @return true if the audio thread has taken every event offered; may be called by the producer
+     */
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Takes the next event, if there is one, and makes it available through type(), key(),
+     * value(), sample() and time(). Only the audio thread may call this.
+     * @return false if the queue is empty
+     */
+    public boolean poll() {
+        long h = head.get();
+        if (h == cachedTail) {
+            cachedTail = tail.get();
+            if (h == cachedTail) { return false; }
+        }
+        int i = (int) h & mask;
+        type = types[i];
+        key = keys[i];
+        value = values[i];
+        sample = samples[i];
+        time = times[i];
+        samples[i] = null;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * @return the type of the event taken by the last poll()
+     */
+    public int type() {
+        return type;
+    }
+
+    /**
+     * @return the key of the event taken by the last poll()
+     */
+    public int key() {
+        return key;
+    }
+
+    /**
+     * @return the value of the event taken by the last poll()
+     */
+    public float value() {
+        return value;
+    }
+
+    /**
+     * @return the sample of the event taken by the last poll()
+     */
+    public Sample sample() {
+        return sample;
+    }
+
+    /**
+     * @return the System.nanoTime the event taken by the last poll() was offered at
+     */
+    public long time() {
+        return time;
+    }
+}
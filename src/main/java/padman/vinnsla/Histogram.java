@@ -0,0 +1,80 @@
+package padman.vinnsla;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ A Histogram counts values in power of two buckets: bucket 0 holds 0, bucket i holds values from
+ 2^(i-1) up to 2^i - 1, and the last bucket everything larger. It has a single writer, which
+ records with a plain read and an ordered write and never allocates; any thread may read it.
+ */
+class Histogram {
+    private final AtomicLongArray counts;
+    private volatile long max = 0;
+
+    /**
+     * @param buckets the number of buckets, the last one collects everything from 2^(buckets-2) up
+     */
+    Histogram(int buckets) {
+        counts = new AtomicLongArray(buckets);
+    }
+
+    /**
+     * Counts a value. Only the writer thread may call this.
+     * @param value the value, negative values are counted as 0
+     */
+    void record(long value) {
+        if (value < 0) { value = 0; }
+        int bucket = Math.min(counts.length() - 1, 64 - Long.numberOfLeadingZeros(value));
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        if (value > max) { max = value; }
+    }
+
+    /**
+     * Empties every bucket. Only the writer thread may call this.
+     */
+    void clear() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.lazySet(i, 0);
+        }
+        max = 0;
+    }
+
+    /**
+     * @return a copy of the bucket counts
+     */
+    long[] snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @param fraction the share of values wanted below the result, for instance 0.99
+     * @return the upper bound of the bucket the given share of values falls in, or 0 if nothing was counted
+     */
+    long percentile(double fraction) {
+        long[] copy = snapshot();
+        long total = 0;
+        for (long count : copy) {
+            total += count;
+        }
+        long wanted = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= wanted && seen > 0) {
+                return i == copy.length - 1 ? max : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the largest value counted
+     */
+    long getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,188 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ An Instrument is a set of samples played together: one SampleBank per velocity layer, each with
+ one sample per semitone from the instrument's lowest note up. Keys ask for samples by their sample
+ index, semitones above C2 (MIDI note 36), whatever note the instrument starts on.
+ <p>
+ An instrument folder may describe itself in an instrument.properties manifest. Every key is optional:
+ <pre>
+ name=Grand piano
+ lowestNote=36                      MIDI note of the first file
+ files=C2.wav Db2.wav D2.wav ...    one file per semitone, lowest first; default all files, sorted
+ rootStep=3                         load every third file and resample the rest
+ interpolation=CUBIC
+ layers=2                           velocity layers
+ files.2=C2_loud.wav ...            the files of layer 2
+ velocity.2=90                      the lowest MIDI velocity that plays layer 2
+ loop.C2.wav=44100 88200            loop start and end frame of a file
+ </pre>
+ Without a manifest the instrument is named after its folder and every file in it is a semitone
+ from C2 up, sorted by name, which is how the piano folder is laid out.
+ */
+public class Instrument {
+    public static final String MANIFEST = "instrument.properties";
+
+    private final String name;
+    private final int lowestNote;
+    private final SampleBank[] layers;
+    private final int[] minVelocity;
+
+    /**
+     * Creates an instrument of a single layer.
+     * @param name the name to show
+     * @param lowestNote the MIDI note of the first sample in the bank
+     * @param bank the samples
+     */
+    public Instrument(String name, int lowestNote, SampleBank bank) {
+        this(name, lowestNote, new SampleBank[] { bank }, new int[] { 0 });
+    }
+
+    private Instrument(String name, int lowestNote, SampleBank[] layers, int[] minVelocity) {
+        this.name = name;
+        this.lowestNote = lowestNote;
+        this.layers = layers;
+        this.minVelocity = minVelocity;
+    }
+
+    /**
+     * Loads an instrument folder, following its manifest if it has one.
+     * Files are opened in parallel on the pool of the calling thread if it is a ForkJoinPool thread.
+     * @param folder the folder
+     * @param format the format decoded samples are stored in
+     * @param offHeap true to store decoded samples outside the Java heap
+     * @param map true to memory map WAV files, false to decode them
+     * @param defaults the rootStep and interpolation to use where the manifest gives none
+     * @return the instrument
+     * @throws IOException if the manifest or a file cannot be read
+     */
+    public static Instrument load(Path folder, SampleFormat format, boolean offHeap, boolean map,
+                                  Properties defaults) throws IOException {
+        Properties manifest = new Properties(defaults);
+        Path manifestFile = folder.resolve(MANIFEST);
+        if (Files.exists(manifestFile)) {
+            try (Reader in = Files.newBufferedReader(manifestFile)) {
+                manifest.load(in);
+            }
+        }
+        try {
+            String name = manifest.getProperty("name", folder.getFileName().toString());
+            int lowestNote = Integer.parseInt(manifest.getProperty("lowestNote", "" + KeyLayout.MIDI_NOTE_OF_SAMPLE_0));
+            int rootStep = Integer.parseInt(manifest.getProperty("rootStep", "1"));
+            Interpolation interpolation = Interpolation.valueOf(manifest.getProperty("interpolation", "CUBIC"));
+            int count = Integer.parseInt(manifest.getProperty("layers", "1"));
+            Map<String, int[]> loops = new HashMap<>();
+            for (String key : manifest.stringPropertyNames()) {
+                if (!key.startsWith("loop.")) { continue; }
+                String[] frames = manifest.getProperty(key).trim().split("\\s+");
+                loops.put(key.substring(5), new int[] { Integer.parseInt(frames[0]), Integer.parseInt(frames[1]) });
+            }
+            SampleBank[] layers = new SampleBank[count];
+            int[] minVelocity = new int[count];
+            for (int layer = 0; layer < count; layer++) {
+                String suffix = layer == 0 ? "" : "." + (layer + 1);
+                layers[layer] = new SampleBank(format, offHeap);
+                layers[layer].addFiles(files(folder, manifest.getProperty("files" + suffix)), rootStep, interpolation, map, loops);
+                minVelocity[layer] = Integer.parseInt(manifest.getProperty("velocity" + suffix, "0"));
+            }
+            return new Instrument(name, lowestNote, layers, minVelocity);
+        } catch (IllegalArgumentException e) { // NumberFormatException too
+            throw new IOException(manifestFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static List<Path> files(Path folder, String list) throws IOException {
+        if (list == null) {
+            try (Stream<Path> files = Files.list(folder)) {
+                return files.filter(p -> {
+                    String name = p.getFileName().toString();
+                    return name.endsWith(".wav") || name.endsWith(SamplePack.EXTENSION);
+                }).sorted().toList();
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        for (String name : list.trim().split("\\s+")) {
+            files.add(folder.resolve(name));
+        }
+        return files;
+    }
+
+    /**
+     * @return the name to show
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Finds the sample a key plays at full velocity.
+     * @param index the sample index, semitones above C2
+     * @return the sample, or null if the instrument has no sample for that note
+     */
+    public Sample get(int index) {
+        return get(index, 127);
+    }
+
+    /**
+     * Finds the sample a note plays at a given velocity, from the loudest layer the velocity reaches.
+     * @param index the sample index, semitones above C2
+     * @param velocity the MIDI velocity, 1 to 127
+     * @return the sample, or null if the instrument has no sample for that note
+     */
+    public Sample get(int index, int velocity) {
+        int layer = 0;
+        for (int i = 1; i < layers.length; i++) {
+            if (velocity >= minVelocity[i]) { layer = i; }
+        }
+        return layers[layer].get(index + KeyLayout.MIDI_NOTE_OF_SAMPLE_0 - lowestNote);
+    }
+
+    /**
+     * Pages in the samples between the given sample indices first, in every layer.
+     * @param first the lowest sample index in use
+     * @param last the highest sample index in use
+     */
+    public void warmUp(int first, int last) {
+        int offset = KeyLayout.MIDI_NOTE_OF_SAMPLE_0 - lowestNote;
+        for (SampleBank layer : layers) {
+            layer.warmUp(first + offset, last + offset);
+        }
+    }
+
+    /**
+     * @return the number of bytes the samples of every layer take
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (SampleBank layer : layers) {
+            bytes += layer.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Keeps rendered copies of recently played resampled notes in every layer.
+     * @param budget the most bytes the copies of each layer may take
+     */
+    public void setResampleCache(long budget) {
+        for (SampleBank layer : layers) {
+            layer.setResampleCache(budget);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + layers.length + (layers.length == 1 ? " layer, " : " layers, ") + (getBytes() >> 20) + " MB)";
+    }
+}
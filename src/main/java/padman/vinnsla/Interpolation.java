@@ -0,0 +1,11 @@
+package padman.vinnsla;
+
+/**
+ The ways a ResampledSample can work out the frames between the frames of its root sample.
+ */
+public enum Interpolation {
+    /** A straight line between the two nearest frames. Cheapest, slightly dulls the highs. */
+    LINEAR,
+    /** A Catmull-Rom curve through the four nearest frames. About twice the work of LINEAR, with far less aliasing. */
+    CUBIC
+}
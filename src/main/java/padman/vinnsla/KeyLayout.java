@@ -0,0 +1,117 @@
+package padman.vinnsla;
+
+/**
+ The KeyLayout maps the 40 keyboard keys to sample indices. The keys are numbered bottom row first,
+ left to right (Z, X, C ... 9, 0), each row an octave of the major scale starting on the note
+ below it. In minor the third, sixth and seventh of each octave are lowered by a semitone.
+ <p>
+ Every mapping is worked out once into int tables, one per transposition and scale, so finding
+ the sample for a key press is a pair of array lookups with no boxing or hashing.
+ Sample 0 is C2, which is MIDI note 36.
+ */
+public class KeyLayout {
+    /**
+     * The KeyCode names of the keys, in key order.
+     */
+    public static final String[] KEY_NAMES = {"Z", "X", "C", "V", "B", "N", "M", "COMMA", "PERIOD", "SLASH", "A", "S", "D", "F", "G", "H", "J", "K", "L", "SEMICOLON", "Q", "W", "E", "R", "T", "Y", "U", "I", "O", "P", "DIGIT1", "DIGIT2", "DIGIT3", "DIGIT4", "DIGIT5", "DIGIT6", "DIGIT7", "DIGIT8", "DIGIT9", "DIGIT0"};
+    public static final int MIDI_NOTE_OF_SAMPLE_0 = 36;
+    private static final int[] keyIndicesMajor = { 0, 2, 4, 5, 7, 9, 11, 12, 14, 16, 12, 14, 16, 17, 19, 21, 23, 24, 26, 28, 24, 26, 28, 29, 31, 33, 35, 36, 38, 40, 36, 38, 40,41, 43, 45, 47, 48, 50, 52 };
+    private static final int[] minor = { 4, 9, 11, 16, 21, 23, 28, 33, 35, 40, 45, 47, 52 };
+    static final int SAMPLE_RANGE = 64 + 12; // highest key index plus the largest transposition, rounded up
+
+    private static final int[][] keyTable = new int[24][]; // [transposition * 2 + minor][key] -> sample index
+    private static final int[][] sampleTable = new int[24][]; // [transposition * 2 + minor][sample index] -> key or -1
+    private static final int[][] midiTable = new int[12][128]; // [transposition][MIDI note] -> sample index
+
+    static {
+        for (int transposition = 0; transposition < 12; transposition++) {
+            for (int scale = 0; scale < 2; scale++) {
+                int[] keys = new int[keyIndicesMajor.length];
+                int[] samples = new int[SAMPLE_RANGE];
+                java.util.Arrays.fill(samples, -1);
+                for (int key = 0; key < keys.length; key++) {
+                    int keyIndex = keyIndicesMajor[key];
+                    if (scale == 1 && isMinorDegree(keyIndex)) {
+                        keyIndex -= 1;
+                    }
+                    keys[key] = keyIndex + transposition;
+                    if (samples[keys[key]] == -1) {
+                        samples[keys[key]] = key;
+                    }
+                }
+                keyTable[transposition * 2 + scale] = keys;
+                sampleTable[transposition * 2 + scale] = samples;
+            }
+            for (int note = 0; note < 128; note++) {
+                midiTable[transposition][note] = note - MIDI_NOTE_OF_SAMPLE_0 + transposition;
+            }
+        }
+    }
+
+    private static boolean isMinorDegree(int keyIndex) {
+        for (int degree : minor) {
+            if (degree == keyIndex) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public static int keyCount() {
+        return keyIndicesMajor.length;
+    }
+
+    /**
+     * Finds the sample index a key plays.
+     * @param key the key number, 0 to keyCount() - 1
+     * @param transposition semitones above C, 0 to 11
+     * @param isMajor true for the major scale, false for minor
+     * @return the sample index
+     */
+    public static int keyIndex(int key, int transposition, boolean isMajor) {
+        return keyTable[transposition * 2 + (isMajor ? 0 : 1)][key];
+    }
+
+    /**
+     * Finds the key that plays a sample, for lighting up the key when the note comes from elsewhere.
+     * @param sampleIndex the sample index
+     * @param transposition semitones above C, 0 to 11
+     * @param isMajor true for the major scale, false for minor
+     * @return the first key that plays the sample, or -1 if none does
+     */
+    public static int keyOfSample(int sampleIndex, int transposition, boolean isMajor) {
+        if (sampleIndex < 0 || sampleIndex >= SAMPLE_RANGE) { return -1; }
+        return sampleTable[transposition * 2 + (isMajor ? 0 : 1)][sampleIndex];
+    }
+
+    /**
+     * Finds the sample index a MIDI note plays. MIDI keyboards are chromatic, so only the
+     * transposition applies, not the scale.
+     * @param note the MIDI note number, 0 to 127
+     * @param transposition semitones above C, 0 to 11
+     * @return the sample index, which may be outside the sample bank
+     */
+    public static int midiIndex(int note, int transposition) {
+        return midiTable[transposition][note];
+    }
+
+    /**
+     * @return the highest sample index any key can play untransposed
+     */
+    public static int highestKeyIndex() {
+        return keyIndicesMajor[keyIndicesMajor.length - 1];
+    }
+
+    /**
+     * Finds a key by the name of its KeyCode.
+     * @param name a name from KEY_NAMES, such as "Q" or "DIGIT1"
+     * @return the key number, or -1 if there is no such key
+     */
+    public static int keyOf(String name) {
+        for (int i = 0; i < KEY_NAMES.length; i++) {
+            if (KEY_NAMES[i].equals(name)) { return i; }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,114 @@
+package padman.vinnsla;
+
+import java.util.Arrays;
+
+/**
+ A look-ahead peak limiter, the last effect in the chain, which keeps dense chords from clipping
+ when they are converted to 16 bit. The audio is delayed by LOOKAHEAD_FRAMES, so the limiter sees
+ every peak coming and has turned the gain down smoothly by the time it goes out, rather than
+ clipping it or catching it late.
+ <p>
+ For every frame it works out the gain that would bring the louder channel down to the ceiling.
+ The lowest of those over the look-ahead window is held (a sliding minimum, kept in a small ring
+ as a queue of rising values, so each frame costs O(1)), then let rise back towards 1 over the
+ release time, and averaged over the window. The average of values that are all at or below the
+ gain a peak needs is itself at or below it, so peaks never go over the ceiling, and the gain
+ falls along a straight line instead of stepping. Both channels get the same gain, so the stereo
+ image does not move.
+ <p>
+ The delay adds LOOKAHEAD_FRAMES, 1.5 ms, to the engine's latency while the limiter is on.
+ */
+public class Limiter extends Effect {
+    /** Parameter: the highest level let through, in dB below full scale, -12 to 0. */
+    public static final int CEILING = 0;
+    /** Parameter: how long the gain takes to recover after a peak, in seconds, 0.01 to 1. */
+    public static final int RELEASE = 1;
+    public static final int LOOKAHEAD_FRAMES = Math.round(0.0015f * AudioEngine.SAMPLE_RATE);
+
+    private static final int HOLD = LOOKAHEAD_FRAMES + 1; // frames the lowest gain is held for
+
+    private final float[] delayLeft = new float[LOOKAHEAD_FRAMES];
+    private final float[] delayRight = new float[LOOKAHEAD_FRAMES];
+    private int delayAt = 0;
+    private final float[] minGain = new float[HOLD]; // sliding minimum: rising gains...
+    private final int[] minFrame = new int[HOLD]; // ...and the frames they were wanted at
+    private int minFront = 0;
+    private int minSize = 0;
+    private int frame = 0;
+    private float released = 1f;
+    private final float[] box = new float[LOOKAHEAD_FRAMES]; // the last released gains, for the average
+    private int boxAt = 0;
+    private double boxSum = LOOKAHEAD_FRAMES;
+    private float ceiling;
+    private float releaseCoefficient;
+    private volatile float reduction = 0f;
+
+    /**
+     * Creates a limiter with its ceiling just below full scale and a 100 ms release.
+     */
+    public Limiter() {
+        super("limiter", new SmoothedValue(-0.3f, -12f, 0f), new SmoothedValue(0.1f, 0.01f, 1f));
+    }
+
+    /**
+     * @return how far the gain was turned down at most in the last block, in dB, 0 or more
+     */
+    public float getGainReductionDb() {
+        return reduction;
+    }
+
+    @Override
+    protected void reset() {
+        Arrays.fill(delayLeft, 0f);
+        Arrays.fill(delayRight, 0f);
+        Arrays.fill(box, 1f);
+        boxSum = LOOKAHEAD_FRAMES;
+        delayAt = boxAt = minFront = minSize = frame = 0;
+        released = 1f;
+        derive();
+    }
+
+    private void derive() {
+        ceiling = (float) Math.pow(10, parameter(CEILING).get() / 20);
+        releaseCoefficient = (float) -Math.expm1(-1 / (parameter(RELEASE).get() * AudioEngine.SAMPLE_RATE));
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        if (parameter(CEILING).isMoving() || parameter(RELEASE).isMoving()) { derive(); }
+        float lowest = 1f;
+        for (int i = 0; i < frames * 2; i += 2) {
+            float left = buffer[i];
+            float right = buffer[i + 1];
+            float peak = Math.max(Math.abs(left), Math.abs(right));
+            float wanted = peak > ceiling ? ceiling / peak : 1f;
+
+            // the oldest gain leaves the window before the new one comes in, so the ring never overflows
+            if (minSize > 0 && frame - minFrame[minFront] >= HOLD) {
+                minFront = (minFront + 1) % HOLD;
+                minSize--;
+            }
+            while (minSize > 0 && minGain[(minFront + minSize - 1) % HOLD] >= wanted) { minSize--; }
+            int back = (minFront + minSize) % HOLD;
+            minGain[back] = wanted;
+            minFrame[back] = frame;
+            minSize++;
+            frame++;
+            float held = minGain[minFront];
+
+            released = held < released ? held : released + (held - released) * releaseCoefficient;
+            boxSum += released - box[boxAt];
+            box[boxAt] = released;
+            if (++boxAt == LOOKAHEAD_FRAMES) { boxAt = 0; }
+            float gain = (float) (boxSum / LOOKAHEAD_FRAMES);
+            lowest = Math.min(lowest, gain);
+
+            buffer[i] = delayLeft[delayAt] * gain;
+            buffer[i + 1] = delayRight[delayAt] * gain;
+            delayLeft[delayAt] = left;
+            delayRight[delayAt] = right;
+            if (++delayAt == LOOKAHEAD_FRAMES) { delayAt = 0; }
+        }
+        reduction = (float) (20 * Math.log10(1 / lowest));
+    }
+}
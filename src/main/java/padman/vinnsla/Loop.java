@@ -0,0 +1,321 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ A Loop is what the Looper plays: a length in frames and up to MAX_LAYERS layers of note and pedal
+ events, each placed at a frame within the loop. The first layer is the take that set the length;
+ every overdub adds one more. All events live in preallocated parallel arrays, so the audio thread
+ adds and plays layers without allocating.
+ <p>
+ A layer's events are sorted by frame when it is closed. Undo removes the newest layer and the
+ next overdub reuses its room, so only the audio thread may read a loop that belongs to an engine.
+ Other threads save a copy of its closed layers, made between two blocks by AudioEngine.copyLoop.
+ <p>
+ Loops are saved in a small binary file. All numbers are little-endian:
+ <pre>
+ int    magic "PMLP"
+ int    version, 1
+ int    sample rate
+ int    loop length in frames
+ int    number of layers
+ int[]  number of events in each layer
+ then every event in 8 bytes, layer by layer:
+ int    frame
+ short  key
+ byte   type, EventQueue.NOTE_ON, NOTE_OFF or SUSTAIN
+ byte   MIDI velocity of a note on, 1 for the pedal going down
+ </pre>
+ Loading maps the file and reads the events straight out of the mapping.
+ */
+public class Loop {
+    public static final String EXTENSION = ".loop";
+    public static final int MAX_LAYERS = 16;
+    public static final int DEFAULT_CAPACITY = 16384;
+    static final int MAGIC = 0x504c4d50; // "PMLP"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+    private static final int EVENT_BYTES = 8;
+
+    private final int capacity;
+    private final long[] order; // frame << 32 | event, sorted within each closed layer
+    private final int[] types;
+    private final int[] keys;
+    private final float[] values;
+    private final Sample[] samples;
+    private final int[] layerEnd = new int[MAX_LAYERS]; // index after each closed layer's last event
+    private volatile int layers = 0;
+    private volatile int frames = 0;
+    private int count = 0; // events in the closed layers and the one being filled
+
+    /**
+     * Creates an empty loop.
+     * @param capacity the most events its layers can hold together
+     */
+    public Loop(int capacity) {
+        this.capacity = capacity;
+        order = new long[capacity];
+        types = new int[capacity];
+        keys = new int[capacity];
+        values = new float[capacity];
+        samples = new Sample[capacity];
+    }
+
+    // audio thread
+
+    /**
+     * Adds an event to the layer being filled. Audio thread only.
+     * @param frame the frame within the loop, 0 to getFrames() - 1
+     * @return false if the loop is full and the event was left out
+     */
+    boolean add(int frame, int type, int key, float value, Sample sample) {
+        if (count == capacity) { return false; }
+        types[count] = type;
+        keys[count] = key;
+        values[count] = value;
+        samples[count] = sample;
+        order[count] = (long) frame << 32 | count;
+        count++;
+        return true;
+    }
+
+    /**
+     * Sorts the layer being filled and makes it part of the loop. Audio thread only.
+     */
+    void closeLayer() {
+        int start = layerStart(layers);
+        sort(order, start, count);
+        layerEnd[layers] = count;
+        layers = layers + 1; // publishes the layer to other threads
+    }
+
+    /**
+     * Removes the newest layer. Audio thread only.
+     */
+    void removeLayer() {
+        if (layers == 0) { return; }
+        layers = layers - 1;
+        count = layerStart(layers);
+    }
+
+    /**
+     * Empties the loop. Audio thread only.
+     */
+    void clear() {
+        layers = 0;
+        frames = 0;
+        count = 0;
+    }
+
+    /**
+     * @param frames the length of the loop, set when its first take closes
+     */
+    void setFrames(int frames) {
+        this.frames = frames;
+    }
+
+    int layerStart(int layer) {
+        return layer == 0 ? 0 : layerEnd[layer - 1];
+    }
+
+    int layerEnd(int layer) {
+        return layerEnd[layer];
+    }
+
+    /**
+     * @return the frame of the i-th event in play order
+     */
+    int frameAt(int i) {
+        return (int) (order[i] >>> 32);
+    }
+
+    /**
+     * @return the event index of the i-th event in play order, for type(), key(), value() and sample()
+     */
+    int eventAt(int i) {
+        return (int) order[i];
+    }
+
+    int type(int event) {
+        return types[event];
+    }
+
+    int key(int event) {
+        return keys[event];
+    }
+
+    float value(int event) {
+        return values[event];
+    }
+
+    Sample sample(int event) {
+        return samples[event];
+    }
+
+    boolean isFull() {
+        return layers == MAX_LAYERS;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies the closed layers into an empty loop, leaving out the layer being filled and any layer
+     * the other loop has no room for. Audio thread only.
+     * @param to the loop to copy into
+     */
+    void copyClosed(Loop to) {
+        int closed = layers;
+        while (closed > 0 && layerEnd[closed - 1] > to.capacity) { closed--; }
+        int events = closed == 0 ? 0 : layerEnd[closed - 1];
+        System.arraycopy(order, 0, to.order, 0, events);
+        System.arraycopy(types, 0, to.types, 0, events);
+        System.arraycopy(keys, 0, to.keys, 0, events);
+        System.arraycopy(values, 0, to.values, 0, events);
+        System.arraycopy(samples, 0, to.samples, 0, events);
+        System.arraycopy(layerEnd, 0, to.layerEnd, 0, closed);
+        to.count = events;
+        to.frames = frames;
+        to.layers = closed; // publishes the copy
+    }
+
+    // any thread
+
+    /**
+     * @return the number of closed layers
+     */
+    public int getLayers() {
+        return layers;
+    }
+
+    /**
+     * @return the length of the loop in frames, 0 while its first take is being recorded
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of events in the closed layers
+     */
+    public int getEvents() {
+        int closed = layers;
+        return closed == 0 ? 0 : layerEnd[closed - 1];
+    }
+
+    /**
+     * Writes the closed layers to a file. The loop must not change while it is written, so the loop
+     * of a running engine is saved from a copy made by AudioEngine.copyLoop.
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        int closed = layers;
+        int events = closed == 0 ? 0 : layerEnd[closed - 1];
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + closed * 4 + events * EVENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt((int) AudioEngine.SAMPLE_RATE).putInt(frames).putInt(closed);
+        for (int layer = 0; layer < closed; layer++) {
+            out.putInt(layerEnd[layer] - layerStart(layer));
+        }
+        for (int i = 0; i < events; i++) {
+            int event = eventAt(i);
+            out.putInt(frameAt(i)).putShort((short) keys[event]).put((byte) types[event]).put((byte) velocity(event));
+        }
+        Files.write(file, out.array());
+    }
+
+    private int velocity(int event) {
+        return switch (types[event]) {
+            case EventQueue.NOTE_ON -> Math.max(1, Math.min(127, Math.round((float) Math.sqrt(values[event]) * 127)));
+            case EventQueue.SUSTAIN -> values[event] != 0f ? 1 : 0;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Maps a saved loop and finds the sample of every note in an instrument. Notes the instrument
+     * has no sample for are left silent.
+     * @param file the loop file
+     * @param instrument the instrument the notes play
+     * @return the loop, with room for as many overdubs again as it has events
+     * @throws IOException if the file cannot be read or is not a loop
+     */
+    public static Loop load(Path file, Instrument instrument) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.limit() < HEADER_BYTES || in.getInt(0) != MAGIC) { throw new IOException(file + " is not a loop"); }
+        if (in.getInt(4) != VERSION) { throw new IOException("Unsupported loop version " + in.getInt(4)); }
+        if (in.getInt(8) != (int) AudioEngine.SAMPLE_RATE) {
+            throw new IOException(file + " is " + in.getInt(8) + " Hz, expected " + (int) AudioEngine.SAMPLE_RATE);
+        }
+        int frames = in.getInt(12);
+        int layers = in.getInt(16);
+        if (frames <= 0 || layers < 0 || layers > MAX_LAYERS) { throw new IOException(file + " is damaged"); }
+        int at = HEADER_BYTES + layers * 4;
+        int events = 0;
+        for (int layer = 0; layer < layers; layer++) {
+            events += in.getInt(HEADER_BYTES + layer * 4);
+        }
+        if (events < 0 || (long) at + (long) events * EVENT_BYTES > in.limit()) { throw new IOException(file + " is cut short"); }
+        Loop loop = new Loop(Math.max(DEFAULT_CAPACITY, events * 2));
+        loop.setFrames(frames);
+        for (int layer = 0; layer < layers; layer++) {
+            int n = in.getInt(HEADER_BYTES + layer * 4);
+            for (int i = 0; i < n; i++, at += EVENT_BYTES) {
+                int frame = Math.max(0, Math.min(frames - 1, in.getInt(at)));
+                int key = in.getShort(at + 4);
+                int type = in.get(at + 6);
+                int velocity = in.get(at + 7) & 0xff;
+                if (key < 0 || key >= AudioEngine.MAX_KEYS) { throw new IOException(file + " has a note out of range"); }
+                switch (type) {
+                    case EventQueue.NOTE_ON -> loop.add(frame, type, key, MidiInput.velocityGain(velocity),
+                            instrument == null ? null : instrument.get(key, velocity));
+                    case EventQueue.NOTE_OFF -> loop.add(frame, type, key, 0f, null);
+                    case EventQueue.SUSTAIN -> loop.add(frame, type, 0, velocity != 0 ? 1f : 0f, null);
+                    default -> throw new IOException(file + " has an event of unknown type " + type);
+                }
+            }
+            loop.closeLayer();
+        }
+        return loop;
+    }
+
+    /**
+     * Sorts part of an array in place with heapsort, which needs no extra memory.
+     */
+    private static void sort(long[] a, int from, int to) {
+        int n = to - from;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(a, from, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            long top = a[from];
+            a[from] = a[from + end];
+            a[from + end] = top;
+            siftDown(a, from, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] a, int from, int i, int n) {
+        long value = a[from + i];
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && a[from + child + 1] > a[from + child]) { child++; }
+            if (a[from + child] <= value) { break; }
+            a[from + i] = a[from + child];
+            i = child;
+        }
+        a[from + i] = value;
+    }
+}
@@ -0,0 +1,78 @@
+package padman.vinnsla;
+
+/**
+ A LoopedSample plays another sample up to the end of its loop and then repeats the loop for as
+ long as the voice lasts, so a sustained note can be held longer than the recording. It never
+ ends by itself; the voice stops when its release fades out.
+ */
+class LoopedSample extends Sample {
+    private static final ThreadLocal<float[][]> SCRATCH = ThreadLocal.withInitial(() -> new float[1][0]);
+
+    private final Sample source;
+    private final int loopStart;
+    private final int loopEnd;
+
+    /**
+     * @param source the sample to play
+     * @param loopStart the first frame of the loop
+     * @param loopEnd the frame after the last frame of the loop
+     * @throws IllegalArgumentException if the loop is empty or runs past the end of the sample
+     */
+    LoopedSample(Sample source, int loopStart, int loopEnd) {
+        if (loopStart < 0 || loopEnd <= loopStart || loopEnd > source.getFrames()) {
+            throw new IllegalArgumentException("Loop " + loopStart + "-" + loopEnd + " does not fit a sample of "
+                    + source.getFrames() + " frames");
+        }
+        this.source = source;
+        this.loopStart = loopStart;
+        this.loopEnd = loopEnd;
+    }
+
+    @Override
+    public int getFrames() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int read(int frame, float[] dst, int frames) {
+        int done = 0;
+        while (done < frames) {
+            int at = frame + done;
+            if (at >= loopEnd) {
+                at = loopStart + (at - loopStart) % (loopEnd - loopStart);
+            }
+            int n = Math.min(frames - done, loopEnd - at);
+            int got;
+            if (done == 0) {
+                got = source.read(at, dst, n);
+            } else { // read only writes from the start of its buffer
+                float[] rest = scratch(n * 2);
+                got = source.read(at, rest, n);
+                System.arraycopy(rest, 0, dst, done * 2, got * 2);
+            }
+            if (got == 0) { break; }
+            done += got;
+        }
+        return done;
+    }
+
+    private static float[] scratch(int length) {
+        float[][] holder = SCRATCH.get();
+        if (holder[0].length < length) {
+            holder[0] = new float[length];
+        }
+        return holder[0];
+    }
+
+    @Override
+    public long getBytes() {
+        return source.getBytes();
+    }
+
+    /**
+     * @return the sample being looped
+     */
+    Sample getSource() {
+        return source;
+    }
+}
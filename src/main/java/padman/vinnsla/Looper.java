@@ -0,0 +1,314 @@
+package padman.vinnsla;
+
+import java.util.Arrays;
+
+/**
+ The Looper records what is played into a Loop and plays it back through the AudioEngine, one
+ button press at a time, like a loop pedal:
+ <ul>
+ <li>The first press starts recording, the second closes the take. Its length becomes the length of
+ the loop, and the loop starts playing.</li>
+ <li>While playing, a press starts an overdub and the next press adds it to the loop as a new layer.</li>
+ <li>Stop stops playback, and stopping again clears the loop. Undo drops the overdub being recorded,
+ or else the newest layer.</li>
+ </ul>
+ Everything here runs on the audio thread. Takes are cut out of the engine's EventLog, where every
+ event already has the output frame it belongs to, and playback is scheduled against the engine's
+ frame counter: render splits a block at every loop event, so notes start on their exact frame
+ and the loop never drifts from the audio clock, however long it plays.
+ <p>
+ Notes a take starts but does not stop are stopped at the end of the take, and note offs and pedal
+ ups for notes and presses from before the take are left out, so a layer never holds a key forever
+ or lets go of one it did not press.
+ */
+public class Looper {
+    /**
+     What the Looper is doing.
+     */
+    public enum State { EMPTY, RECORDING, PLAYING, OVERDUBBING, STOPPED }
+
+    private static final int MIN_FRAMES = (int) (AudioEngine.SAMPLE_RATE / 10); // shorter takes are dropped
+
+    private final AudioEngine engine;
+    private final EventLog log;
+    private Loop loop = new Loop(Loop.DEFAULT_CAPACITY);
+    private volatile Loop incoming; // handed over by offer, picked up by load
+    private volatile Loop copy; // handed over by requestCopy, filled in by copy
+    private volatile State state = State.EMPTY;
+    private long takeFrom; // number of the first event of the take in the log
+    private long takeStart; // output frame the take started at
+    private long loopStart; // output frame position 0 of the loop played at
+    private long lastFrame; // output frame advance was last called for
+    private final int[] cursor = new int[Loop.MAX_LAYERS]; // next event to play in each layer
+    private final int[] takeHeld = new int[AudioEngine.MAX_KEYS]; // note ons in the take not yet matched
+    private final int[] loopHeld = new int[AudioEngine.MAX_KEYS]; // keys the loop is holding down
+    private boolean loopPedal = false;
+
+    /**
+     * @param engine the engine the loop plays through
+     * @param log the log takes are cut from
+     */
+    Looper(AudioEngine engine, EventLog log) {
+        this.engine = engine;
+        this.log = log;
+    }
+
+    /**
+     * @return what the looper is doing, as of the last block
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the loop being played or recorded
+     */
+    public Loop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Hands a loaded loop over to the audio thread, which starts playing it at its next LOOP_LOAD event.
+     */
+    void offer(Loop loaded) {
+        incoming = loaded;
+    }
+
+    /**
+     * Hands an empty loop over to the audio thread, which copies the closed layers into it at its
+     * next LOOP_COPY event. Null withdraws the request.
+     */
+    void requestCopy(Loop to) {
+        copy = to;
+    }
+
+    /**
+     * @return true until the loop handed over with requestCopy has been filled in
+     */
+    boolean isCopying(Loop to) {
+        return copy == to;
+    }
+
+    // audio thread
+
+    /**
+     * Copies the closed layers into the loop handed over with requestCopy. Audio thread only, or any
+     * thread while the engine is not running.
+     */
+    void copy() {
+        Loop to = copy;
+        if (to == null) { return; }
+        loop.copyClosed(to);
+        copy = null;
+    }
+
+    /**
+     * The loop button: record, close the take, overdub or close the overdub. Audio thread only.
+     * @param frame the output frame the button was pressed at
+     */
+    void press(long frame) {
+        switch (state) {
+            case EMPTY -> startTake(frame);
+            case RECORDING -> {
+                int frames = (int) Math.min(Integer.MAX_VALUE, frame - takeStart);
+                if (frames < MIN_FRAMES) {
+                    state = State.EMPTY;
+                    return;
+                }
+                loop.setFrames(frames);
+                loopStart = takeStart;
+                closeTake(frame);
+                rewind(frame);
+                state = State.PLAYING;
+            }
+            case PLAYING -> {
+                if (!loop.isFull()) {
+                    startTake(frame);
+                    state = State.OVERDUBBING;
+                }
+            }
+            case OVERDUBBING -> {
+                closeTake(frame);
+                int layer = loop.getLayers() - 1;
+                int position = position(frame);
+                int i = loop.layerStart(layer); // what was played over this time round has been heard already
+                while (i < loop.layerEnd(layer) && loop.frameAt(i) <= position) { i++; }
+                cursor[layer] = i;
+                state = State.PLAYING;
+            }
+            case STOPPED -> {
+                loopStart = frame;
+                rewind(frame);
+                state = State.PLAYING;
+            }
+        }
+    }
+
+    /**
+     * The stop button: stops playing, or clears a loop that is stopped. Audio thread only.
+     * @param frame the output frame the button was pressed at
+     */
+    void stop(long frame) {
+        switch (state) {
+            case RECORDING -> state = State.EMPTY;
+            case OVERDUBBING, PLAYING -> {
+                if (state == State.OVERDUBBING) { closeTake(frame); }
+                letGo();
+                state = State.STOPPED;
+            }
+            case STOPPED -> {
+                loop.clear();
+                state = State.EMPTY;
+            }
+            case EMPTY -> { }
+        }
+    }
+
+    /**
+     * Drops the overdub being recorded, or else the newest layer if there is more than one. Audio thread only.
+     */
+    void undo() {
+        if (state == State.OVERDUBBING) {
+            state = State.PLAYING;
+        } else if ((state == State.PLAYING || state == State.STOPPED) && loop.getLayers() > 1) {
+            letGo();
+            loop.removeLayer();
+        }
+    }
+
+    /**
+     * Starts playing the loop last handed over with offer. Audio thread only.
+     * @param frame the output frame playback starts at
+     */
+    void load(long frame) {
+        Loop loaded = incoming;
+        if (loaded == null) { return; }
+        incoming = null;
+        letGo();
+        loop = loaded;
+        loopStart = frame;
+        rewind(frame);
+        state = loaded.getFrames() > 0 && loaded.getLayers() > 0 ? State.PLAYING : State.EMPTY;
+    }
+
+    /**
+     * Plays the loop events due at a frame and tells how far the engine may render before the next
+     * one. Audio thread only.
+     * @param frame the output frame about to be rendered
+     * @param max the most frames wanted
+     * @return the frames to render before calling again, 1 to max
+     */
+    int advance(long frame, int max) {
+        if (state != State.PLAYING && state != State.OVERDUBBING) { return max; }
+        int frames = loop.getFrames();
+        if (frame - lastFrame >= frames - position(lastFrame)) { // wrapped round
+            for (int layer = 0; layer < loop.getLayers(); layer++) {
+                cursor[layer] = loop.layerStart(layer);
+            }
+        }
+        lastFrame = frame;
+        int position = position(frame);
+        int next = frames - position;
+        for (int layer = 0; layer < loop.getLayers(); layer++) {
+            int i = cursor[layer];
+            int end = loop.layerEnd(layer);
+            while (i < end && loop.frameAt(i) <= position) {
+                play(loop.eventAt(i++));
+            }
+            cursor[layer] = i;
+            if (i < end) { next = Math.min(next, loop.frameAt(i) - position); }
+        }
+        return Math.min(max, next);
+    }
+
+    private int position(long frame) {
+        return (int) Math.floorMod(frame - loopStart, (long) loop.getFrames());
+    }
+
+    private void rewind(long frame) {
+        for (int layer = 0; layer < loop.getLayers(); layer++) {
+            cursor[layer] = loop.layerStart(layer);
+        }
+        lastFrame = frame; // events before it are played late rather than skipped
+    }
+
+    private void play(int event) {
+        int key = loop.key(event);
+        switch (loop.type(event)) {
+            case EventQueue.NOTE_ON -> {
+                Sample sample = loop.sample(event);
+                if (sample == null) { return; }
+                engine.startVoice(sample, key, loop.value(event));
+                loopHeld[key]++;
+            }
+            case EventQueue.NOTE_OFF -> {
+                if (loopHeld[key] == 0) { return; }
+                loopHeld[key]--;
+                engine.releaseVoice(key);
+            }
+            case EventQueue.SUSTAIN -> {
+                loopPedal = loop.value(event) != 0f;
+                engine.setPedal(loopPedal);
+            }
+            default -> { }
+        }
+    }
+
+    /**
+     * Lets go of every key and the pedal the loop is holding.
+     */
+    private void letGo() {
+        for (int key = 0; key < loopHeld.length; key++) {
+            for (; loopHeld[key] > 0; loopHeld[key]--) {
+                engine.releaseVoice(key);
+            }
+        }
+        if (loopPedal) {
+            loopPedal = false;
+            engine.setPedal(false);
+        }
+    }
+
+    private void startTake(long frame) {
+        takeFrom = log.getWritten();
+        takeStart = frame;
+        state = State.RECORDING;
+    }
+
+    /**
+     * Copies the events played since the take started from the log into a new layer.
+     * @param frame the output frame the take ends at
+     */
+    private void closeTake(long frame) {
+        Arrays.fill(takeHeld, 0);
+        boolean pedal = false;
+        long from = Math.max(takeFrom, log.getOldest());
+        long to = log.getWritten();
+        for (long e = from; e < to; e++) {
+            int key = log.key(e);
+            int type = log.type(e);
+            int at = position(log.frame(e));
+            switch (type) {
+                case EventQueue.NOTE_ON -> {
+                    if (loop.add(at, type, key, log.value(e), log.sample(e))) { takeHeld[key]++; }
+                }
+                case EventQueue.NOTE_OFF -> {
+                    if (takeHeld[key] > 0 && loop.add(at, type, key, 0f, null)) { takeHeld[key]--; }
+                }
+                case EventQueue.SUSTAIN -> {
+                    boolean down = log.value(e) != 0f;
+                    if (down != pedal && loop.add(at, type, 0, log.value(e), null)) { pedal = down; }
+                }
+                default -> { }
+            }
+        }
+        int end = Math.floorMod(position(frame) - 1, loop.getFrames());
+        for (int key = 0; key < takeHeld.length; key++) {
+            for (; takeHeld[key] > 0; takeHeld[key]--) {
+                loop.add(end, EventQueue.NOTE_OFF, key, 0f, null);
+            }
+        }
+        if (pedal) { loop.add(end, EventQueue.SUSTAIN, 0, 0f, null); }
+        loop.closeLayer();
+    }
+}
@@ -0,0 +1,94 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ A MappedSample plays a WAV file straight from a memory mapping of its data chunk.
+ Mapping reads nothing, the operating system pages the data in the first time it is touched.
+ warm() touches every page ahead of time so the audio thread does not have to wait on the disk.
+ */
+class MappedSample extends Sample {
+    private static final float SHORT_SCALE = 1f / Short.MAX_VALUE;
+
+    private final MappedByteBuffer buffer;
+    private final FloatBuffer floats;
+    private final ShortBuffer shorts;
+    private final int channels;
+    private final int frames;
+    private volatile boolean warm = false;
+
+    /**
+     * Maps the data chunk of a WAV file.
+     * @param file the WAV file, 32 bit float or 16 bit PCM, mono or stereo
+     * @throws IOException if the file cannot be read or is in an unsupported format
+     */
+    MappedSample(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WavHeader header = WavHeader.read(channel);
+            if (header.sampleRate != (int) AudioEngine.SAMPLE_RATE) {
+                throw new IOException(file + " is " + header.sampleRate + " Hz, expected " + (int) AudioEngine.SAMPLE_RATE);
+            }
+            channels = header.channels;
+            frames = header.getFrames();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, header.dataOffset, (long) frames * header.getFrameBytes());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            floats = header.format == WavHeader.FORMAT_FLOAT ? buffer.asFloatBuffer() : null;
+            shorts = header.format == WavHeader.FORMAT_PCM ? buffer.asShortBuffer() : null;
+        } // the mapping stays valid after the channel is closed
+    }
+
+    /**
+     * Touches every page of the mapping so later reads do not fault.
+     */
+    void warm() {
+        if (warm) { return; }
+        buffer.load();
+        warm = true;
+    }
+
+    /**
+     * @return true once warm() has run
+     */
+    boolean isWarm() {
+        return warm;
+    }
+
+    @Override
+    public int getFrames() {
+        return frames;
+    }
+
+    @Override
+    public int read(int frame, float[] dst, int frames) {
+        int n = Math.min(frames, this.frames - frame);
+        if (n <= 0) { return 0; }
+        if (channels == 2) {
+            if (floats != null) {
+                floats.get(frame * 2, dst, 0, n * 2);
+            } else {
+                for (int i = 0; i < n * 2; i++) {
+                    dst[i] = shorts.get(frame * 2 + i) * SHORT_SCALE;
+                }
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                float s = floats != null ? floats.get(frame + i) : shorts.get(frame + i) * SHORT_SCALE;
+                dst[i * 2] = s;
+                dst[i * 2 + 1] = s;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long getBytes() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,210 @@
+package padman.vinnsla;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ The MidiInput plays notes from MIDI devices. Note on and note off messages are turned into engine
+ events on the MIDI callback thread itself, through an EventQueue of their own, so a busy JavaFX
+ thread never delays a MIDI note. Each device gets its own receiver and queue, since the devices
+ may call back on different threads. Closing a receiver lets go of its notes, and of the pedal if
+ it pressed it, and hands its queue back to the engine; it waits for a message being handled on the
+ callback thread, so the queue never has two writers.
+ <p>
+ The sustain pedal (controller 64) holds notes the same way the space bar does on the computer
+ keyboard. MIDI notes are chromatic, so a note plays the sample KeyLayout.midiIndex gives it at the current
+ transposition; the major/minor switch only applies to the computer keyboard. Velocity sets the
+ gain of the note on a square law curve, which sounds closer to even steps than a straight line,
+ and picks the velocity layer of instruments that have more than one.
+ <p>
+ Any transmitting device the Java sound system lists can be opened, including virtual ports such as
+ ALSA's snd-virmidi or macOS's IAC bus. newReceiver gives a receiver that is not tied to a device,
+ for feeding the engine from a Sequencer or from code.
+ */
+public class MidiInput {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int SUSTAIN_PEDAL = 64;
+
+    private final AudioEngine engine;
+    private final SampleLibrary library;
+    private final List<MidiDevice> devices = new ArrayList<>();
+    private final List<Receiver> receivers = new ArrayList<>(); // of the devices opened
+    private volatile int transposition = 0;
+
+    /**
+     * Creates a MIDI input that plays through the given engine.
+     * @param engine the engine to play through
+     * @param library the notes play its selected instrument
+     */
+    public MidiInput(AudioEngine engine, SampleLibrary library) {
+        this.engine = engine;
+        this.library = library;
+    }
+
+    /**
+     * Sets the transposition applied to notes started from now on.
+     * @param transposition semitones above C, 0 to 11
+     */
+    public void setTransposition(int transposition) {
+        this.transposition = transposition;
+    }
+
+    /**
+     * @return the names of the devices notes can be received from
+     */
+    public static List<String> listInputs() {
+        List<String> names = new ArrayList<>();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            try {
+                if (isInput(MidiSystem.getMidiDevice(info))) {
+                    names.add(info.getName());
+                }
+            } catch (MidiUnavailableException e) {
+                // not listed
+            }
+        }
+        return names;
+    }
+
+    private static boolean isInput(MidiDevice device) {
+        return device.getMaxTransmitters() != 0 && !(device instanceof Sequencer) && !(device instanceof Synthesizer);
+    }
+
+    /**
+     * Opens every MIDI input device whose name contains the given text.
+     * Devices that cannot be opened are reported and skipped.
+     * @param name part of the device name, or null or empty for every device
+     * @return the number of devices opened
+     */
+    public synchronized int open(String name) {
+        int opened = 0;
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            if (name != null && !name.isEmpty() && !info.getName().contains(name)) { continue; }
+            try {
+                MidiDevice device = MidiSystem.getMidiDevice(info);
+                if (!isInput(device) || devices.contains(device)) { continue; }
+                device.open();
+                Receiver receiver = newReceiver();
+                device.getTransmitter().setReceiver(receiver);
+                devices.add(device);
+                receivers.add(receiver);
+                opened++;
+            } catch (MidiUnavailableException e) {
+                System.err.println("Could not open MIDI device " + info.getName() + ": " + e.getMessage());
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Creates a receiver that plays the notes sent to it. Messages must be sent to it
+     * from one thread at a time.
+     * @return the receiver
+     */
+    public Receiver newReceiver() {
+        return new NoteReceiver(engine.openEventQueue(QUEUE_CAPACITY));
+    }
+
+    /**
+     * Closes every device opened, letting go of the notes they were holding.
+     */
+    public synchronized void close() {
+        for (MidiDevice device : devices) {
+            device.close();
+        }
+        for (Receiver receiver : receivers) {
+            receiver.close();
+        }
+        devices.clear();
+        receivers.clear();
+    }
+
+    /**
+     * Turns a MIDI velocity into a note gain.
+     * @param velocity the velocity, 1 to 127
+     * @return the gain, 0 to 1
+     */
+    static float velocityGain(int velocity) {
+        float v = velocity / 127f;
+        return v * v;
+    }
+
+    /**
+     A receiver with its own queue into the engine. It remembers which sample each MIDI note
+     started, so a note off stops the right sample even if the transposition changed meanwhile.
+     */
+    private class NoteReceiver implements Receiver {
+        private final EventQueue queue;
+        private final int[] sounding = new int[128]; // sample index each note is playing, or -1
+        private boolean pedal = false; // this device has the sustain pedal down
+        private volatile boolean closed = false;
+
+        NoteReceiver(EventQueue queue) {
+            this.queue = queue;
+            Arrays.fill(sounding, -1);
+        }
+
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp) { // never at the same time as close
+            if (closed || !(message instanceof ShortMessage m)) { return; }
+            int command = m.getCommand();
+            int note = m.getData1();
+            if (command == ShortMessage.NOTE_ON && m.getData2() > 0) {
+                noteOn(note, m.getData2());
+            } else if (command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON) {
+                noteOff(note);
+            } else if (command == ShortMessage.CONTROL_CHANGE && note == SUSTAIN_PEDAL) {
+                boolean down = m.getData2() >= 64;
+                if (down != pedal) {
+                    pedal = down;
+                    post(EventQueue.SUSTAIN, 0, down ? 1f : 0f, null);
+                }
+            }
+        }
+
+        private void noteOn(int note, int velocity) {
+            if (sounding[note] != -1) { noteOff(note); }
+            int sampleIndex = KeyLayout.midiIndex(note, transposition);
+            Instrument instrument = library.getSelected();
+            Sample sample = instrument == null ? null : instrument.get(sampleIndex, velocity);
+            if (sample == null) { return; }
+            sounding[note] = sampleIndex;
+            post(EventQueue.NOTE_ON, sampleIndex, velocityGain(velocity), sample);
+        }
+
+        private void noteOff(int note) {
+            int sampleIndex = sounding[note];
+            if (sampleIndex == -1) { return; }
+            sounding[note] = -1;
+            post(EventQueue.NOTE_OFF, sampleIndex, 0f, null);
+        }
+
+        private void post(int type, int key, float value, Sample sample) {
+            if (!queue.offer(type, key, value, sample)) {
+                engine.countDroppedEvent();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) { return; }
+                closed = true;
+                for (int note = 0; note < sounding.length; note++) {
+                    noteOff(note);
+                }
+                if (pedal) { post(EventQueue.SUSTAIN, 0, 0f, null); } // only a pedal this device pressed
+            }
+            engine.closeEventQueue(queue);
+        }
+    }
+}
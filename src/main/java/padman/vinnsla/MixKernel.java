@@ -0,0 +1,68 @@
+package padman.vinnsla;
+
+/**
+ A MixKernel holds the inner loops of mixing: adding a voice to the mix at a gain or along its
+ envelope, summing partial mixes, master volume, envelope ramps and the final conversion to
+ 16 bit PCM. There are two: VectorMixKernel, written with the incubating Vector API, and
+ ScalarMixKernel, plain loops that run anywhere.
+ <p>
+ The vector kernel is used when the jdk.incubator.vector module is in the boot layer, that is
+ when the JVM was started with --add-modules jdk.incubator.vector, and padman.vector is not set to
+ false. Only one kernel is ever loaded, so every call site stays monomorphic and inlines.
+ <p>
+ Voice gains are given per channel, which is how stereo panning is applied. Buffers are
+ interleaved stereo; env buffers have one level per frame.
+ */
+abstract class MixKernel {
+    static final MixKernel INSTANCE = choose();
+
+    private static MixKernel choose() {
+        boolean available = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        if (available && !"false".equals(System.getProperty("padman.vector")) && VectorMixKernel.isUseful()) {
+            return new VectorMixKernel();
+        }
+        return new ScalarMixKernel();
+    }
+
+    /**
+     * Adds src to out at a fixed gain per channel.
+     * @param frames the number of frames to add
+     */
+    abstract void mix(float[] out, float[] src, float gainLeft, float gainRight, int frames);
+
+    /**
+     * Adds src to out at a gain per channel times the level of each frame in env.
+     * @param frames the number of frames to add
+     */
+    abstract void mix(float[] out, float[] src, float[] env, float gainLeft, float gainRight, int frames);
+
+    /**
+     * Adds src to out.
+     * @param samples the number of floats to add, two per frame
+     */
+    abstract void add(float[] out, float[] src, int samples);
+
+    /**
+     * Multiplies every float of buffer by gain.
+     * @param samples the number of floats to scale, two per frame
+     */
+    abstract void scale(float[] buffer, float gain, int samples);
+
+    /**
+     * Writes a straight line into env: start + step * 1, start + step * 2 and so on.
+     * @param from the first index written
+     * @param n the number of levels written
+     */
+    abstract void ramp(float[] env, int from, float start, float step, int n);
+
+    /**
+     * Converts float samples to 16 bit little-endian PCM, clipping anything outside -1..1.
+     * @param frames the number of stereo frames to convert
+     */
+    abstract void toPcm16(float[] in, byte[] out, int frames);
+
+    /**
+     * @return the name of the kernel, for logs and benchmarks
+     */
+    abstract String getName();
+}
@@ -0,0 +1,145 @@
+package padman.vinnsla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ The NoteClient sends notes to a NoteServer. Events are stamped with the time they are made and
+ gathered into one packet until flush is called, so a chord goes out as one packet, and the
+ server spaces its notes as they were played. A full packet is sent on its own.
+ A client must be used from one thread at a time.
+ <p>
+ Run on its own, it is a load generator standing in for a crowd of remote controllers:
+ NoteClient host port eventsPerSecond seconds
+ */
+public class NoteClient implements Closeable {
+    private final DatagramChannel channel;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(NoteServer.HEADER_BYTES
+            + NoteServer.MAX_EVENTS * NoteServer.EVENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private int count = 0;
+
+    /**
+     * Connects to a note server.
+     * @param host the server's host name or address
+     * @param port the server's UDP port
+     * @throws IOException if the address cannot be used
+     */
+    public NoteClient(String host, int port) throws IOException {
+        channel = DatagramChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        packet.position(NoteServer.HEADER_BYTES);
+    }
+
+    /**
+     * @param note the MIDI note, 0 to 127
+     * @param velocity 1 to 127
+     * @throws IOException if a full packet could not be sent
+     */
+    public void noteOn(int note, int velocity) throws IOException {
+        add(NoteServer.NOTE_ON, note, velocity);
+    }
+
+    /**
+     * @param note the MIDI note, 0 to 127
+     * @throws IOException if a full packet could not be sent
+     */
+    public void noteOff(int note) throws IOException {
+        add(NoteServer.NOTE_OFF, note, 0);
+    }
+
+    /**
+     * @param down true to press the sustain pedal
+     * @throws IOException if a full packet could not be sent
+     */
+    public void sustain(boolean down) throws IOException {
+        add(NoteServer.PEDAL, 0, down ? 127 : 0);
+    }
+
+    private void add(int type, int note, int value) throws IOException {
+        packet.putInt((int) (System.nanoTime() / 1000)).put((byte) type).put((byte) note).put((byte) value).put((byte) 0);
+        if (++count == NoteServer.MAX_EVENTS) { flush(); }
+    }
+
+    /**
+     * Sends the events gathered since the last flush.
+     * @throws IOException if the packet could not be sent
+     */
+    public void flush() throws IOException {
+        if (count == 0) { return; }
+        packet.putInt(0, NoteServer.MAGIC).putShort(4, (short) NoteServer.VERSION).putShort(6, (short) count);
+        packet.flip();
+        try {
+            channel.write(packet);
+        } finally {
+            packet.clear().position(NoteServer.HEADER_BYTES);
+            count = 0;
+        }
+    }
+
+    /**
+     * Plays a steady stream of short notes, each note on followed by its note off, sending a packet
+     * every millisecond, until the time is up or the thread is interrupted.
+     * @param eventsPerSecond note ons and note offs per second
+     * @param nanos how long to play for
+     * @return the number of events sent
+     * @throws IOException if a packet could not be sent
+     */
+    public long generate(int eventsPerSecond, long nanos) throws IOException {
+        long start = System.nanoTime();
+        long sent = 0;
+        int note = 36;
+        long tick = start;
+        while (tick - start < nanos && !Thread.currentThread().isInterrupted()) {
+            long due = (tick - start) * eventsPerSecond / 1_000_000_000L;
+            while (sent < due) {
+                if ((sent & 1) == 0) {
+                    noteOn(note, 100);
+                } else {
+                    noteOff(note);
+                    note = 36 + (note - 36 + 7) % 61; // up in fifths over five octaves
+                }
+                sent++;
+            }
+            flush();
+            tick += 1_000_000;
+            LockSupport.parkNanos(tick - System.nanoTime());
+        }
+        if ((sent & 1) == 1) {
+            noteOff(note);
+            sent++;
+        }
+        flush();
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Sends a stream of notes to a note server.
+     * @param args host, port, events per second and seconds
+     * @throws IOException if the server cannot be reached
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: NoteClient host port eventsPerSecond seconds");
+            System.exit(2);
+        }
+        try (NoteClient client = new NoteClient(args[0], Integer.parseInt(args[1]))) {
+            long sent = client.generate(Integer.parseInt(args[2]), (long) (Double.parseDouble(args[3]) * 1e9));
+            System.out.println("Sent " + sent + " events");
+        }
+    }
+}
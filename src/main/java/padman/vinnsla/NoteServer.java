@@ -0,0 +1,472 @@
+package padman.vinnsla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ The NoteServer plays notes sent over UDP by remote controllers, such as a phone or another
+ computer running NoteClient. One thread waits on a selector for packets and turns their notes
+ into engine events through an EventQueue of its own, as MidiInput does for MIDI devices, so
+ nothing it does can hold up the audio thread or the keys played locally.
+ <p>
+ A packet is little-endian: the int MAGIC, the short VERSION, the short number of events, then
+ EVENT_BYTES per event: the sender's clock in microseconds as an int (it may wrap), the type
+ (NOTE_ON, NOTE_OFF or PEDAL), the MIDI note, the velocity or pedal value, and a spare byte.
+ Packets that do not parse are counted and dropped.
+ <p>
+ Packets do not arrive evenly spaced, nor always in order, so notes are held back in a jitter
+ buffer. For each sender the server keeps the smallest difference seen between its own clock and
+ the sender's, which is the trip of the fastest packet, and plays each note the jitter time after
+ that trip would have brought it. A sender's notes wait in the order of its clock, so a packet
+ overtaken by a later one still plays first. Notes keep the spacing they were played with as long
+ as no packet is later than the jitter time; one that is plays at once and is counted as late, and
+ a late note on older than a note off already played for its note is dropped, so it cannot stick.
+ The difference may grow slowly, a millisecond per second, so a clock running slower than ours is
+ followed.
+ <p>
+ At most maxNotesPerSecond note ons are played, in bursts of up to a tenth of that; more are
+ dropped, so a flooding controller cannot take over the voices. Note offs are never dropped for
+ notes that are sounding. A sender silent for SENDER_TIMEOUT with no notes or pedal held is
+ forgotten, making room for another; notes still held when the server closes are let go of.
+ MIDI notes play the sample KeyLayout.midiIndex gives them, as from a MIDI keyboard, and show
+ on the keys through the engine's held keys.
+ */
+public class NoteServer implements Closeable {
+    static final int MAGIC = 0x454e4d50; // "PMNE"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int EVENT_BYTES = 8;
+    public static final int NOTE_ON = 1;
+    public static final int NOTE_OFF = 2;
+    public static final int PEDAL = 3;
+    /** The most events a packet may carry, so that it fits an ordinary network frame. */
+    public static final int MAX_EVENTS = 128;
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int PENDING_CAPACITY = 1024; // per sender
+    private static final int MAX_SENDERS = 16;
+    private static final long SENDER_TIMEOUT = 10_000_000_000L; // nanoseconds
+    private static final long IDLE_WAIT = 100; // milliseconds
+
+    private final AudioEngine engine;
+    private final SampleLibrary library;
+    private final EventQueue queue;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread thread;
+    private final long jitter; // nanoseconds
+    private final double notesPerNano;
+    private final double burst;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(HEADER_BYTES + MAX_EVENTS * EVENT_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final Sender[] senders = new Sender[MAX_SENDERS];
+    private volatile int transposition = 0;
+    private volatile boolean running = true;
+
+    private double tokens;
+    private long tokensAt;
+
+    private volatile long received = 0;
+    private volatile long played = 0;
+    private volatile long dropped = 0;
+    private volatile long late = 0;
+    private volatile long malformed = 0;
+
+    /**
+     A remote controller, known by its address. It remembers which sample each of its MIDI notes
+     started, so a note off stops the right sample even if the transposition changed meanwhile.
+     Its notes wait in a jitter buffer of their own, a binary min-heap on its clock.
+     */
+    private static class Sender {
+        final SocketAddress address;
+        final int[] sounding = new int[128]; // sample index each note is playing, or -1
+        final long[] lastOff = new long[128]; // sender clock of the last note off played for each note
+        int soundingCount = 0;
+        long lastArrival;
+        long clock; // the sender's clock in microseconds, unwrapped
+        long offset; // smallest of our time minus the sender's, in nanoseconds
+        boolean pedal;
+        final long[] pendingClock = new long[PENDING_CAPACITY];
+        final long[] pendingOrder = new long[PENDING_CAPACITY]; // keeps events of the same clock in arrival order
+        final int[] pendingEvent = new int[PENDING_CAPACITY]; // type << 16 | note << 8 | value
+        int pending = 0;
+        long order = 0;
+
+        Sender(SocketAddress address, int clock, long now) {
+            this.address = address;
+            this.clock = clock & 0xffffffffL;
+            this.offset = now - this.clock * 1000;
+            this.lastArrival = now;
+            Arrays.fill(sounding, -1);
+            Arrays.fill(lastOff, Long.MIN_VALUE);
+        }
+
+        long unwrap(int stamp) {
+            clock += stamp - (int) clock;
+            return clock;
+        }
+
+        void add(long at, int event) {
+            int i = pending++;
+            long o = order++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!before(at, o, parent)) { break; }
+                move(parent, i);
+                i = parent;
+            }
+            pendingClock[i] = at;
+            pendingOrder[i] = o;
+            pendingEvent[i] = event;
+        }
+
+        void removeFirst() {
+            pending--;
+            long at = pendingClock[pending];
+            long o = pendingOrder[pending];
+            int event = pendingEvent[pending];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= pending) { break; }
+                if (child + 1 < pending && before(pendingClock[child + 1], pendingOrder[child + 1], child)) { child++; }
+                if (before(at, o, child)) { break; }
+                move(child, i);
+                i = child;
+            }
+            pendingClock[i] = at;
+            pendingOrder[i] = o;
+            pendingEvent[i] = event;
+        }
+
+        private boolean before(long at, long o, int i) {
+            return at < pendingClock[i] || (at == pendingClock[i] && o < pendingOrder[i]);
+        }
+
+        private void move(int from, int to) {
+            pendingClock[to] = pendingClock[from];
+            pendingOrder[to] = pendingOrder[from];
+            pendingEvent[to] = pendingEvent[from];
+        }
+    }
+
+    /**
+     * Opens the server on the given port and starts listening.
+     * @param engine the engine to play through
+     * @param library the notes play its selected instrument
+     * @param port the UDP port, or 0 for any free port
+     * @param jitterMs how long notes are held back to even out their arrival, in milliseconds
+     * @param maxNotesPerSecond the most note ons played per second, or 0 for no limit
+     * @throws IOException if the port cannot be opened
+     */
+    public NoteServer(AudioEngine engine, SampleLibrary library, int port, double jitterMs, int maxNotesPerSecond)
+            throws IOException {
+        this.engine = engine;
+        this.library = library;
+        this.jitter = (long) (jitterMs * 1_000_000);
+        this.notesPerNano = maxNotesPerSecond / 1e9;
+        this.burst = Math.max(16, maxNotesPerSecond / 10.0);
+        this.tokens = burst;
+        this.tokensAt = System.nanoTime();
+        this.queue = engine.openEventQueue(QUEUE_CAPACITY);
+        channel = DatagramChannel.open();
+        selector = Selector.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            selector.close();
+            engine.closeEventQueue(queue);
+            throw e;
+        }
+        thread = new Thread(this::run, "PadMan network");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the UDP port the server listens on
+     */
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sets the transposition applied to notes started from now on.
+     * @param transposition semitones above C, 0 to 11
+     */
+    public void setTransposition(int transposition) {
+        this.transposition = transposition;
+    }
+
+    /**
+     * @return the packets received, including malformed ones
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return the events sent to the engine
+     */
+    public long getPlayed() {
+        return played;
+    }
+
+    /**
+     * @return the note ons dropped for going over the rate, arriving after their note off,
+     * or from too many senders
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the events that arrived after the jitter buffer would have played them
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * @return the packets that did not parse
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * Stops listening and lets go of every note the server started.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long next = nextDue();
+                long now = System.nanoTime();
+                if (next <= now) {
+                    selector.selectNow();
+                } else {
+                    selector.select(next == Long.MAX_VALUE ? IDLE_WAIT : Math.max(1, (next - now + 999_999) / 1_000_000));
+                }
+                selector.selectedKeys().clear();
+                receiveAll();
+                playDue(System.nanoTime());
+                forgetIdle(System.nanoTime());
+            }
+        } catch (IOException e) {
+            if (running) { System.err.println("Network note server stopped: " + e.getMessage()); }
+        } finally {
+            playDue(Long.MAX_VALUE);
+            for (int s = 0; s < senders.length; s++) {
+                forget(s);
+            }
+            engine.closeEventQueue(queue);
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private long due(Sender sender) {
+        return sender.pendingClock[0] * 1000 + sender.offset + jitter;
+    }
+
+    private long nextDue() {
+        long next = Long.MAX_VALUE;
+        for (Sender sender : senders) {
+            if (sender != null && sender.pending > 0) { next = Math.min(next, due(sender)); }
+        }
+        return next;
+    }
+
+    private void playDue(long now) {
+        for (Sender sender : senders) {
+            while (sender != null && sender.pending > 0 && due(sender) <= now) {
+                play(sender, sender.pendingClock[0], sender.pendingEvent[0]);
+                sender.removeFirst();
+            }
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            packet.clear();
+            SocketAddress from = channel.receive(packet);
+            if (from == null) { return; }
+            long now = System.nanoTime();
+            received++;
+            packet.flip();
+            int count = packet.limit() >= HEADER_BYTES ? packet.getShort(6) : -1;
+            if (count < 1 || count > MAX_EVENTS || packet.getInt(0) != MAGIC || packet.getShort(4) != VERSION
+                    || packet.limit() != HEADER_BYTES + count * EVENT_BYTES) {
+                malformed++;
+                continue;
+            }
+            int s = sender(from, packet.getInt(HEADER_BYTES), now);
+            if (s == -1) {
+                dropped += count;
+                continue;
+            }
+            accept(s, count, now);
+        }
+    }
+
+    private int sender(SocketAddress from, int clock, long now) {
+        int free = -1;
+        for (int s = 0; s < senders.length; s++) {
+            if (senders[s] == null) {
+                if (free == -1) { free = s; }
+            } else if (senders[s].address.equals(from)) {
+                return s;
+            }
+        }
+        if (free != -1) { senders[free] = new Sender(from, clock, now); }
+        return free;
+    }
+
+    private void accept(int s, int count, long now) {
+        Sender sender = senders[s];
+        long newest = sender.unwrap(packet.getInt(HEADER_BYTES + (count - 1) * EVENT_BYTES));
+        long trip = now - newest * 1000;
+        sender.offset = Math.min(trip, sender.offset + (now - sender.lastArrival) / 1000);
+        sender.lastArrival = now;
+        sender.unwrap(packet.getInt(HEADER_BYTES)); // back to the first event, so each event unwraps from the one before
+        for (int i = 0; i < count; i++) {
+            int at = HEADER_BYTES + i * EVENT_BYTES;
+            long clock = sender.unwrap(packet.getInt(at));
+            int type = packet.get(at + 4);
+            int note = packet.get(at + 5) & 0x7f;
+            int value = packet.get(at + 6) & 0x7f;
+            if (type < NOTE_ON || type > PEDAL) {
+                malformed++;
+                continue;
+            }
+            if (jitter > 0 && clock * 1000 + sender.offset + jitter <= now) { late++; }
+            if (sender.pending == PENDING_CAPACITY) { // full: play the earliest now rather than lose one
+                play(sender, sender.pendingClock[0], sender.pendingEvent[0]);
+                sender.removeFirst();
+            }
+            sender.add(clock, type << 16 | note << 8 | value); // even if late, so it plays in the sender's order
+        }
+    }
+
+    private void play(Sender sender, long clock, int event) {
+        int note = event >> 8 & 0xff;
+        int value = event & 0xff;
+        switch (event >> 16) {
+            case NOTE_ON -> {
+                if (value == 0) {
+                    noteOff(sender, note, clock);
+                } else if (clock < sender.lastOff[note]) { // came after its own note off
+                    dropped++;
+                } else if (takeToken()) {
+                    noteOn(sender, note, value);
+                } else {
+                    dropped++;
+                }
+            }
+            case NOTE_OFF -> noteOff(sender, note, clock);
+            default -> {
+                boolean down = value >= 64;
+                if (down != sender.pedal) {
+                    sender.pedal = down;
+                    post(EventQueue.SUSTAIN, 0, down ? 1f : 0f, null);
+                }
+            }
+        }
+    }
+
+    private boolean takeToken() {
+        if (notesPerNano == 0) { return true; }
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - tokensAt) * notesPerNano);
+        tokensAt = now;
+        if (tokens < 1) { return false; }
+        tokens--;
+        return true;
+    }
+
+    private void noteOn(Sender sender, int note, int velocity) {
+        if (sender.sounding[note] != -1) { release(sender, note); }
+        int sampleIndex = KeyLayout.midiIndex(note, transposition);
+        Instrument instrument = library.getSelected();
+        Sample sample = instrument == null ? null : instrument.get(sampleIndex, velocity);
+        if (sample == null) { return; }
+        sender.sounding[note] = sampleIndex;
+        sender.soundingCount++;
+        post(EventQueue.NOTE_ON, sampleIndex, MidiInput.velocityGain(velocity), sample);
+    }
+
+    private void noteOff(Sender sender, int note, long clock) {
+        sender.lastOff[note] = Math.max(sender.lastOff[note], clock);
+        release(sender, note);
+    }
+
+    private void release(Sender sender, int note) {
+        int sampleIndex = sender.sounding[note];
+        if (sampleIndex == -1) { return; }
+        sender.sounding[note] = -1;
+        sender.soundingCount--;
+        post(EventQueue.NOTE_OFF, sampleIndex, 0f, null);
+    }
+
+    private void post(int type, int key, float value, Sample sample) {
+        if (queue.offer(type, key, value, sample)) {
+            played++;
+        } else {
+            engine.countDroppedEvent();
+        }
+    }
+
+    /**
+     * Frees the place of senders silent for SENDER_TIMEOUT with nothing left to play. Senders holding
+     * notes or the pedal are kept, however long a note is held; they are let go of on close.
+     */
+    private void forgetIdle(long now) {
+        for (int s = 0; s < senders.length; s++) {
+            Sender sender = senders[s];
+            if (sender != null && sender.soundingCount == 0 && !sender.pedal && sender.pending == 0
+                    && now - sender.lastArrival > SENDER_TIMEOUT) {
+                senders[s] = null;
+            }
+        }
+    }
+
+    private void forget(int s) {
+        Sender sender = senders[s];
+        if (sender == null) { return; }
+        for (int note = 0; note < sender.sounding.length; note++) {
+            release(sender, note);
+        }
+        if (sender.pedal) { post(EventQueue.SUSTAIN, 0, 0f, null); }
+        senders[s] = null;
+    }
+}
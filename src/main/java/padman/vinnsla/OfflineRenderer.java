@@ -0,0 +1,202 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ The OfflineRenderer plays a script of timed key events through an AudioEngine without JavaFX
+ or a sound card and streams the result to a WAV file as fast as the mixer can go.
+ Keys behave as they do in KeysUI: a key plays the sample KeyLayout gives it for the current
+ transposition and scale, and releasing it fades the note it started.
+ <p>
+ A script has one event per line, a time in seconds followed by a command. Blank lines and lines
+ starting with # are ignored. Events are applied at their exact frame, not rounded to a block.
+ <pre>
+ 0.00 on Q          press the Q key
+ 0.50 off Q         release it
+ 1.00 transpose 2   root note D
+ 1.00 minor         switch to the minor scale
+ 2.00 major
+ 2.00 pedal down    hold released keys until the pedal comes up
+ 3.00 pedal up
+ 4.00 loop          start recording a loop; again to close it, then to overdub
+ 9.00 loop stop     stop the loop; again to clear it
+ 9.00 reverb 0.3    add reverb, 0 to switch it off
+ 9.00 limiter off   switch the limiter off, on to switch it back on
+ </pre>
+ Run it from the command line with the classes on the class path:
+ <pre>
+ java -cp target/classes padman.vinnsla.OfflineRenderer script.txt out.wav [sampleFolder]
+ </pre>
+ */
+public class OfflineRenderer {
+
+    /**
+     One line of a script.
+     @param frame the frame the event happens at
+     @param command on, off, transpose, minor, major, pedal, loop, reverb or limiter
+     @param argument the key name, the transposition, up, down, stop, the reverb mix, on or off, if any
+     */
+    public record ScriptEvent(long frame, String command, String argument) { }
+
+    private final SampleBank bank;
+    private final AudioEngine engine;
+    private final float[] block;
+    private final List<ScriptEvent> events = new ArrayList<>();
+    private final int[] sounding = new int[KeyLayout.keyCount()]; // sample index each key is playing, or -1
+    private int transposition = 0;
+    private boolean isMajor = true;
+
+    /**
+     * Creates a renderer with its own engine.
+     * @param bank the samples to play
+     * @param bufferFrames the size of the blocks rendered
+     * @param maxVoices the number of voices in the engine
+     */
+    public OfflineRenderer(SampleBank bank, int bufferFrames, int maxVoices) {
+        this.bank = bank;
+        this.engine = new AudioEngine(bufferFrames, maxVoices);
+        this.block = new float[bufferFrames * AudioEngine.CHANNELS];
+        Arrays.fill(sounding, -1);
+    }
+
+    /**
+     * @return the engine the script is played through, for changing its settings before rendering
+     */
+    public AudioEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Adds an event to the script.
+     * @param seconds the time of the event
+     * @param command on, off, transpose, minor or major
+     * @param argument the key name or the transposition, or null
+     */
+    public void addEvent(double seconds, String command, String argument) {
+        events.add(new ScriptEvent(Math.round(seconds * AudioEngine.SAMPLE_RATE), command, argument));
+    }
+
+    /**
+     * Reads a script file and adds its events.
+     * @param script the script file
+     * @throws IOException if the file cannot be read or a line cannot be parsed
+     */
+    public void readScript(Path script) throws IOException {
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(script)) {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) { continue; }
+            String[] parts = line.split("\\s+");
+            try {
+                addEvent(Double.parseDouble(parts[0]), parts[1], parts.length > 2 ? parts[2] : null);
+            } catch (RuntimeException e) {
+                throw new IOException(script + " line " + lineNumber + ": cannot parse \"" + line + "\"");
+            }
+        }
+    }
+
+    /**
+     * Renders the script from the start and writes it to out.
+     * @param out where the audio goes
+     * @param tailSeconds how long to keep rendering after the last event, so releases can ring out
+     * @return the number of frames rendered
+     * @throws IOException if out cannot be written
+     */
+    public long render(WavWriter out, double tailSeconds) throws IOException {
+        events.sort(Comparator.comparingLong(ScriptEvent::frame));
+        long end = (events.isEmpty() ? 0 : events.get(events.size() - 1).frame())
+                + Math.round(tailSeconds * AudioEngine.SAMPLE_RATE);
+        int bufferFrames = engine.getBufferFrames();
+        long frame = 0;
+        int next = 0;
+        while (frame < end) {
+            while (next < events.size() && events.get(next).frame() <= frame) {
+                apply(events.get(next++));
+            }
+            long until = next < events.size() ? Math.min(end, events.get(next).frame()) : end;
+            int n = (int) Math.min(bufferFrames, until - frame);
+            engine.render(block, n);
+            out.write(block, n);
+            frame += n;
+        }
+        return frame;
+    }
+
+    private void apply(ScriptEvent event) {
+        switch (event.command()) {
+            case "on" -> {
+                int key = key(event);
+                int keyIndex = KeyLayout.keyIndex(key, transposition, isMajor);
+                Sample sample = bank.get(keyIndex);
+                if (sample != null && sounding[key] == -1) {
+                    sounding[key] = keyIndex;
+                    engine.noteOn(sample, keyIndex);
+                }
+            }
+            case "off" -> {
+                int key = key(event);
+                if (sounding[key] != -1) {
+                    engine.noteOff(sounding[key]);
+                    sounding[key] = -1;
+                }
+            }
+            case "transpose" -> transposition = Math.floorMod(Integer.parseInt(event.argument()), 12);
+            case "minor" -> isMajor = false;
+            case "major" -> isMajor = true;
+            case "pedal" -> engine.setSustain("down".equals(event.argument()));
+            case "loop" -> {
+                if ("stop".equals(event.argument())) {
+                    engine.stopLoop();
+                } else {
+                    engine.loop();
+                }
+            }
+            case "reverb" -> {
+                double mix = Double.parseDouble(event.argument());
+                if (mix > 0) { engine.setEffectParameter(AudioEngine.REVERB, Reverb.MIX, mix); }
+                engine.setEffectBypassed(AudioEngine.REVERB, mix <= 0);
+            }
+            case "limiter" -> engine.setEffectBypassed(AudioEngine.LIMITER, "off".equals(event.argument()));
+            default -> throw new IllegalArgumentException("Unknown command " + event.command());
+        }
+    }
+
+    private static int key(ScriptEvent event) {
+        int key = KeyLayout.keyOf(event.argument());
+        if (key == -1) { throw new IllegalArgumentException("Unknown key " + event.argument()); }
+        return key;
+    }
+
+    /**
+     * Renders a script file to a WAV file and prints how much faster than real time it went.
+     * @param args script file, output file and optionally the sample folder
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: OfflineRenderer script.txt out.wav [sampleFolder]");
+            System.exit(2);
+        }
+        SampleBank bank = new SampleBank(SampleFormat.INT16, false);
+        bank.mapFolder(args.length > 2 ? Path.of(args[2])
+                : SampleBank.resolveFolder(OfflineRenderer.class.getResource("/padman/vidmot/Audio/PianoC2-C7")));
+        OfflineRenderer renderer = new OfflineRenderer(bank, 1024, 64);
+        renderer.readScript(Path.of(args[0]));
+        long start = System.nanoTime();
+        long frames;
+        try (WavWriter out = new WavWriter(Path.of(args[1]))) {
+            frames = renderer.render(out, 2.0);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double audio = frames / AudioEngine.SAMPLE_RATE;
+        System.out.printf("Rendered %.1f s of audio in %.2f s, %.0fx real time, %.0f frames/s%n",
+                audio, seconds, audio / seconds, frames / seconds);
+    }
+}
@@ -0,0 +1,155 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ A PackedSample plays a SamplePack file. The attack, the first ATTACK_FRAMES, is decoded when the
+ sample is loaded, so a note starts exactly as fast as from a fully decoded sample. The rest is
+ decoded block by block on a background thread into the same 16 bit buffer, and decodedFrames
+ marks how far it has got. When a note is played before its tail is done, hurry() moves the
+ sample to a second decoder thread that only works on samples being played.
+ <p>
+ The decoders stay far ahead of the playhead: a block of 4096 frames decodes in well under a
+ millisecond. Should the playhead ever overtake them, the missing frames are played as silence
+ and counted in getUnderruns, rather than the audio thread waiting.
+ Once the tail is decoded the packed bytes are dropped. A block that fails to decode stops the
+ decoding: it is reported, the rest of the tail stays silent, and isFinished tells waiting threads.
+ */
+class PackedSample extends Sample {
+    static final int ATTACK_FRAMES = 16 * SamplePack.BLOCK_FRAMES; // about 1.5 s
+    private static final float SHORT_SCALE = 1f / Short.MAX_VALUE;
+    private static final ExecutorService BACKGROUND = decoder("PadMan tail decoder", Thread.MIN_PRIORITY);
+    private static final ExecutorService URGENT = decoder("PadMan urgent tail decoder", Thread.NORM_PRIORITY + 2);
+    private static final AtomicLong underruns = new AtomicLong();
+
+    private final short[] data;
+    private final int frames;
+    private final int blocks;
+    private byte[] pack; // null once every block is decoded
+    private int nextBlock = 0;
+    private volatile int decodedFrames = 0;
+    private volatile boolean hurried = false;
+    private volatile boolean failed = false;
+    private final Path file;
+
+    private static ExecutorService decoder(String name, int priority) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads a pack file, decodes its attack and starts decoding the rest in the background.
+     * @param file the .pack file
+     * @throws IOException if the file cannot be read or is not a sample pack
+     */
+    PackedSample(Path file) throws IOException {
+        this.file = file;
+        pack = Files.readAllBytes(file);
+        try {
+            frames = SamplePack.readFrames(pack);
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+        blocks = (frames + SamplePack.BLOCK_FRAMES - 1) / SamplePack.BLOCK_FRAMES;
+        data = new short[frames * 2];
+        while (decodedFrames < Math.min(ATTACK_FRAMES, frames)) {
+            if (!decodeNextBlock()) { throw new IOException(file + " is damaged"); }
+        }
+        if (!isDecoded()) {
+            BACKGROUND.execute(this::decodeTail);
+        }
+    }
+
+    /**
+     * Decodes one more block.
+     * @return false if every block was already decoded, or a block failed to decode
+     */
+    private synchronized boolean decodeNextBlock() {
+        if (nextBlock == blocks || failed) { return false; }
+        try {
+            SamplePack.decodeBlock(pack, nextBlock, data, frames);
+        } catch (RuntimeException e) {
+            failed = true;
+            pack = null;
+            System.err.println("Could not decode block " + nextBlock + " of " + file + ": " + e);
+            return false;
+        }
+        nextBlock++;
+        decodedFrames = Math.min(frames, nextBlock * SamplePack.BLOCK_FRAMES); // publishes the block to readers
+        if (nextBlock == blocks) { pack = null; }
+        return true;
+    }
+
+    private void decodeTail() {
+        while (decodeNextBlock()) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Decodes the rest of the tail on the urgent decoder, for a sample about to be played.
+     */
+    void hurry() {
+        if (hurried || isDecoded()) { return; }
+        hurried = true;
+        URGENT.execute(this::decodeTail);
+    }
+
+    /**
+     * @return true once every frame is decoded
+     */
+    boolean isDecoded() {
+        return decodedFrames == frames;
+    }
+
+    /**
+     * @return true once decoding has stopped, with every frame decoded or at a block that failed
+     */
+    boolean isFinished() {
+        return failed || isDecoded();
+    }
+
+    /**
+     * @return the number of reads, over all packed samples, that ran past the decoded frames
+     */
+    static long getUnderruns() {
+        return underruns.get();
+    }
+
+    @Override
+    public int getFrames() {
+        return frames;
+    }
+
+    @Override
+    public int read(int frame, float[] dst, int frames) {
+        int n = Math.min(frames, this.frames - frame);
+        if (n <= 0) { return 0; }
+        int ready = Math.max(0, Math.min(n, decodedFrames - frame));
+        int base = frame * 2;
+        for (int i = 0; i < ready * 2; i++) {
+            dst[i] = data[base + i] * SHORT_SCALE;
+        }
+        if (ready < n) {
+            Arrays.fill(dst, ready * 2, n * 2, 0f);
+            underruns.incrementAndGet();
+        }
+        return n;
+    }
+
+    @Override
+    public long getBytes() {
+        byte[] packed = pack;
+        return data.length * 2L + (packed == null ? 0 : packed.length);
+    }
+}
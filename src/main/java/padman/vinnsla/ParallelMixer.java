@@ -0,0 +1,131 @@
+package padman.vinnsla;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ The ParallelMixer splits the voices of one block between the audio thread and a few worker threads.
+ Voice number i of the active list is always mixed by part i % parts into that part's own buffer,
+ and the parts are summed in order afterwards, so the result does not depend on which thread finished first.
+ <p>
+ Workers are started once and wait between blocks by spinning briefly and then parking; handing
+ out a block only writes a few fields and unparks them, so nothing is allocated on the audio thread.
+ */
+class ParallelMixer {
+    private static final int SPINS = 2000;
+
+    private final int parts; // workers plus the audio thread
+    private final float[][] partial;
+    private final float[][] scratch;
+    private final float[][] env;
+    private final Thread[] workers;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long generation = 0;
+    private volatile boolean running = true;
+    private volatile Thread owner;
+
+    // the current block, written by the audio thread before generation is bumped
+    private Voice[] pool;
+    private int[] active;
+    private int activeCount;
+    private int frames;
+    private boolean[] alive;
+
+    /**
+     * Starts the worker threads.
+     * @param threads the number of worker threads, in addition to the audio thread
+     * @param bufferFrames the largest block that will be mixed
+     * @param maxVoices the size of the engine's voice pool
+     */
+    ParallelMixer(int threads, int bufferFrames, int maxVoices) {
+        parts = threads + 1;
+        partial = new float[parts][bufferFrames * AudioEngine.CHANNELS];
+        scratch = new float[parts][bufferFrames * AudioEngine.CHANNELS];
+        env = new float[parts][bufferFrames];
+        alive = new boolean[maxVoices];
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int part = i + 1;
+            workers[i] = new Thread(() -> work(part), "PadMan mix worker " + part);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.MAX_PRIORITY);
+            workers[i].start();
+        }
+    }
+
+    private void work(int part) {
+        long seen = 0;
+        while (running) {
+            int spins = 0;
+            while (generation == seen && running) {
+                if (++spins < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            if (!running) { return; }
+            seen = generation;
+            mixPart(part);
+            if (pending.decrementAndGet() == 0) {
+                LockSupport.unpark(owner);
+            }
+        }
+    }
+
+    private void mixPart(int part) {
+        float[] out = partial[part];
+        Arrays.fill(out, 0, frames * AudioEngine.CHANNELS, 0f);
+        for (int i = part; i < activeCount; i += parts) {
+            alive[i] = pool[active[i]].mix(out, scratch[part], env[part], frames);
+        }
+    }
+
+    /**
+     * Mixes every active voice into out. Called by the audio thread.
+     * @param pool the engine's voices
+     * @param active pool indices of the voices to mix
+     * @param activeCount the number of voices to mix
+     * @param out the buffer to fill, overwritten
+     * @param frames the number of frames to mix
+     * @return for each position in active, whether that voice is still sounding
+     */
+    boolean[] mix(Voice[] pool, int[] active, int activeCount, float[] out, int frames) {
+        this.pool = pool;
+        this.active = active;
+        this.activeCount = activeCount;
+        this.frames = frames;
+        this.owner = Thread.currentThread();
+        pending.set(workers.length);
+        generation++;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        mixPart(0);
+        int spins = 0;
+        while (pending.get() != 0) {
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, 50_000);
+            }
+        }
+        int samples = frames * AudioEngine.CHANNELS;
+        System.arraycopy(partial[0], 0, out, 0, samples);
+        for (int part = 1; part < parts; part++) {
+            MixKernel.INSTANCE.add(out, partial[part], samples);
+        }
+        return alive;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
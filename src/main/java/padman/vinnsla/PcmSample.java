@@ -0,0 +1,92 @@
+package padman.vinnsla;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ A PcmSample keeps decoded frames in a ByteBuffer in one of the SampleFormats.
+ The buffer is either a heap buffer or a direct (off-heap) buffer.
+ */
+class PcmSample extends Sample {
+    private static final float SHORT_SCALE = 1f / Short.MAX_VALUE;
+
+    private final SampleFormat format;
+    private final ByteBuffer buffer;
+    private final FloatBuffer floats;
+    private final ShortBuffer shorts;
+    private final int frames;
+
+    /**
+     * Encodes interleaved stereo float frames into the given format.
+     * @param data interleaved left/right samples in the range -1..1
+     * @param format the format to store the frames in
+     * @param offHeap true to keep the frames in a direct buffer outside the Java heap
+     */
+    PcmSample(float[] data, SampleFormat format, boolean offHeap) {
+        this.format = format;
+        this.frames = data.length / 2;
+        int bytes = frames * format.getBytesPerFrame();
+        buffer = (offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(ByteOrder.nativeOrder());
+        floats = format == SampleFormat.FLOAT32 ? buffer.asFloatBuffer() : null;
+        shorts = format == SampleFormat.FLOAT32 ? null : buffer.asShortBuffer();
+        switch (format) {
+            case FLOAT32 -> floats.put(0, data);
+            case INT16 -> {
+                for (int i = 0; i < frames * 2; i++) {
+                    shorts.put(i, toShort(data[i]));
+                }
+            }
+            case MONO16 -> {
+                for (int i = 0; i < frames; i++) {
+                    shorts.put(i, toShort((data[i * 2] + data[i * 2 + 1]) * 0.5f));
+                }
+            }
+        }
+    }
+
+    private static short toShort(float s) {
+        return (short) (Math.max(-1f, Math.min(1f, s)) * Short.MAX_VALUE);
+    }
+
+    @Override
+    public int getFrames() {
+        return frames;
+    }
+
+    @Override
+    public int read(int frame, float[] dst, int frames) {
+        int n = Math.min(frames, this.frames - frame);
+        if (n <= 0) { return 0; }
+        switch (format) {
+            case FLOAT32 -> floats.get(frame * 2, dst, 0, n * 2);
+            case INT16 -> {
+                int base = frame * 2;
+                for (int i = 0; i < n * 2; i++) {
+                    dst[i] = shorts.get(base + i) * SHORT_SCALE;
+                }
+            }
+            case MONO16 -> {
+                for (int i = 0; i < n; i++) {
+                    float s = shorts.get(frame + i) * SHORT_SCALE;
+                    dst[i * 2] = s;
+                    dst[i * 2 + 1] = s;
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long getBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the format the frames are stored in
+     */
+    SampleFormat getFormat() {
+        return format;
+    }
+}
@@ -0,0 +1,98 @@
+package padman.vinnsla;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ The ResampleCache keeps rendered copies of the resampled notes played most recently, so the
+ notes in use cost a plain read instead of interpolation on the audio thread. Copies are rendered
+ on a background thread the first time a note is played and thrown away, least recently played
+ first, when the copies together would go over the byte budget.
+ <p>
+ A copy of a note resampled from a PackedSample is only rendered once the root's tail is decoded,
+ since until then the missing frames read as silence and the copy would keep it for good. If the
+ tail fails to decode no copy is made, and the note is not tried again.
+ <p>
+ Dropping a copy only makes the note interpolate again, with the same frames, so it is safe
+ while the note is sounding.
+ */
+class ResampleCache {
+    private static final long DECODE_WAIT = 1_000_000; // nanoseconds between looks at an undecoded root
+    private final long budget;
+    private final SampleFormat format;
+    private final boolean offHeap;
+    private final ExecutorService renderer;
+    private final LinkedHashMap<ResampledSample, Long> cached = new LinkedHashMap<>(16, 0.75f, true); // bytes, least recent first
+    private final Set<ResampledSample> rendering = new HashSet<>();
+    private long bytes = 0;
+
+    /**
+     * Creates an empty cache.
+     * @param budget the most bytes the rendered copies may take
+     * @param format the format copies are stored in
+     * @param offHeap true to store copies outside the Java heap
+     * @param renderer the background thread copies are rendered on
+     */
+    ResampleCache(long budget, SampleFormat format, boolean offHeap, ExecutorService renderer) {
+        this.budget = budget;
+        this.format = format;
+        this.offHeap = offHeap;
+        this.renderer = renderer;
+    }
+
+    /**
+     * Marks a sample as just played, and renders a copy of it in the background if there is none.
+     * @param sample the sample played
+     */
+    synchronized void touch(ResampledSample sample) {
+        if (cached.get(sample) != null || rendering.contains(sample)) { return; }
+        long size = (long) sample.getFrames() * format.getBytesPerFrame();
+        if (size > budget) { return; }
+        rendering.add(sample);
+        renderer.execute(() -> render(sample));
+    }
+
+    private void render(ResampledSample sample) {
+        if (sample.getRoot() instanceof PackedSample packed && !packed.isDecoded()) {
+            if (packed.isFinished()) { return; } // damaged: stays in rendering, so it is not tried again
+            LockSupport.parkNanos(DECODE_WAIT); // the urgent decoder is finishing it
+            renderer.execute(() -> render(sample));
+            return;
+        }
+        store(sample, sample.render(format, offHeap));
+    }
+
+    private synchronized void store(ResampledSample sample, Sample copy) {
+        rendering.remove(sample);
+        long size = copy.getBytes();
+        Iterator<Map.Entry<ResampledSample, Long>> oldest = cached.entrySet().iterator();
+        while (bytes + size > budget && oldest.hasNext()) {
+            Map.Entry<ResampledSample, Long> entry = oldest.next();
+            entry.getKey().setRendered(null);
+            bytes -= entry.getValue();
+            oldest.remove();
+        }
+        sample.setRendered(copy);
+        cached.put(sample, size);
+        bytes += size;
+    }
+
+    /**
+     * @return the number of bytes the rendered copies take
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of rendered copies
+     */
+    synchronized int size() {
+        return cached.size();
+    }
+}
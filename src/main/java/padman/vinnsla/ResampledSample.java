@@ -0,0 +1,143 @@
+package padman.vinnsla;
+
+import java.util.Arrays;
+
+/**
+ A ResampledSample plays another sample a number of semitones higher or lower by reading it at a
+ fractional rate. Nothing is stored: every block is interpolated from the root sample as it is read,
+ and the playhead position is worked out from the frame number, so blocks join up exactly.
+ <p>
+ A ResampleCache can hand the sample a fully rendered copy, which read then uses instead.
+ The copy holds the same frames, so a voice does not hear the switch in either direction.
+ <p>
+ Several mix threads may read the same sample at once, so the root frames are read into a scratch
+ buffer that belongs to the reading thread.
+ */
+class ResampledSample extends Sample {
+    private static final ThreadLocal<float[][]> SCRATCH = ThreadLocal.withInitial(() -> new float[1][0]);
+
+    private final Sample root;
+    private final int semitones;
+    private final double ratio; // root frames per frame
+    private final Interpolation interpolation;
+    private final int frames;
+    private volatile Sample rendered;
+
+    /**
+     * Creates a sample that plays root shifted in pitch.
+     * @param root the sample to read from
+     * @param semitones how far to shift it, positive is higher
+     * @param interpolation how to work out frames between the root's frames
+     */
+    ResampledSample(Sample root, int semitones, Interpolation interpolation) {
+        this.root = root;
+        this.semitones = semitones;
+        this.ratio = Math.pow(2, semitones / 12.0);
+        this.interpolation = interpolation;
+        this.frames = (int) Math.max(0, (root.getFrames() - 1) / ratio);
+    }
+
+    @Override
+    public int getFrames() {
+        return frames;
+    }
+
+    @Override
+    public int read(int frame, float[] dst, int frames) {
+        Sample cached = rendered;
+        if (cached != null) { return cached.read(frame, dst, frames); }
+        int n = Math.min(frames, this.frames - frame);
+        if (n <= 0) { return 0; }
+        double start = frame * ratio;
+        int first = Math.max(0, (int) start - 1);
+        int need = (int) ((frame + n - 1) * ratio) - first + 4; // two frames after the last, plus rounding in pos
+        float[] src = scratch(need * 2);
+        int got = root.read(first, src, need);
+        Arrays.fill(src, got * 2, need * 2, 0f);
+        double pos = start - first;
+        if (interpolation == Interpolation.LINEAR) {
+            for (int i = 0; i < n; i++) {
+                int j = (int) pos;
+                float f = (float) (pos - j);
+                int a = j * 2;
+                dst[i * 2] = src[a] + f * (src[a + 2] - src[a]);
+                dst[i * 2 + 1] = src[a + 1] + f * (src[a + 3] - src[a + 1]);
+                pos += ratio;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int j = (int) pos;
+                float f = (float) (pos - j);
+                int a = j * 2;
+                int before = j > 0 ? a - 2 : a; // the first frame of the root has nothing before it
+                dst[i * 2] = cubic(src[before], src[a], src[a + 2], src[a + 4], f);
+                dst[i * 2 + 1] = cubic(src[before + 1], src[a + 1], src[a + 3], src[a + 5], f);
+                pos += ratio;
+            }
+        }
+        return n;
+    }
+
+    private static float cubic(float xm1, float x0, float x1, float x2, float f) {
+        return x0 + 0.5f * f * (x1 - xm1 + f * (2f * xm1 - 5f * x0 + 4f * x1 - x2 + f * (3f * (x0 - x1) + x2 - xm1)));
+    }
+
+    private static float[] scratch(int length) {
+        float[][] holder = SCRATCH.get();
+        if (holder[0].length < length) {
+            holder[0] = new float[length];
+        }
+        return holder[0];
+    }
+
+    @Override
+    public long getBytes() {
+        Sample cached = rendered;
+        return cached == null ? 0 : cached.getBytes();
+    }
+
+    /**
+     * Renders every frame into a new sample, for the ResampleCache.
+     * @param format the format to store the frames in
+     * @param offHeap true to store the frames outside the Java heap
+     * @return the rendered sample
+     */
+    Sample render(SampleFormat format, boolean offHeap) {
+        float[] data = new float[frames * 2];
+        int block = 4096;
+        float[] buffer = new float[block * 2];
+        for (int frame = 0; frame < frames; frame += block) {
+            int n = read(frame, buffer, block);
+            System.arraycopy(buffer, 0, data, frame * 2, n * 2);
+        }
+        return new PcmSample(data, format, offHeap);
+    }
+
+    /**
+     * @param rendered a rendered copy to read from, or null to interpolate again
+     */
+    void setRendered(Sample rendered) {
+        this.rendered = rendered;
+    }
+
+    /**
+     * @return true if reads come from a rendered copy
+     */
+    boolean isRendered() {
+        return rendered != null;
+    }
+
+    /**
+     * @return the sample this one is shifted from
+     */
+    Sample getRoot() {
+        return root;
+    }
+
+    /**
+     * @return how many semitones the root is shifted by
+     */
+    int getSemitones() {
+        return semitones;
+    }
+}
@@ -0,0 +1,126 @@
+package padman.vinnsla;
+
+import java.util.Arrays;
+
+/**
+ An algorithmic room reverb after Jezar's Freeverb: eight parallel comb filters with damped
+ feedback, then four allpass filters in series, per channel, the right channel's delays a little
+ longer than the left's for width. The delay lengths are Freeverb's, tuned for 44.1 kHz.
+ <p>
+ The reverb is a send: the dry signal passes untouched and the reverberated mono sum is added on
+ top at the mix level, which glides across each block. Each filter runs over the whole block
+ before the next, rather than every filter for every frame, so its delay line and position stay
+ in registers and cache.
+ */
+public class Reverb extends Effect {
+    /** Parameter: how much reverb is added, 0 to 1. */
+    public static final int MIX = 0;
+    /** Parameter: the size of the room, 0 to 1, which sets how long the reverb rings. */
+    public static final int ROOM_SIZE = 1;
+    /** Parameter: how quickly high frequencies die away, 0 to 1. */
+    public static final int DAMPING = 2;
+
+    private static final int[] COMBS = { 1116, 1188, 1277, 1356, 1422, 1491, 1557, 1617 };
+    private static final int[] ALLPASSES = { 556, 441, 341, 225 };
+    private static final int SPREAD = 23; // extra frames of delay on the right
+    private static final float INPUT_GAIN = 0.015f;
+    private static final float WET_GAIN = 3f;
+    private static final float ALLPASS_FEEDBACK = 0.5f;
+
+    private final float[][] combs = new float[COMBS.length * 2][]; // left then right
+    private final int[] combAt = new int[combs.length];
+    private final float[] combFilter = new float[combs.length]; // damping memory of each comb
+    private final float[][] allpasses = new float[ALLPASSES.length * 2][];
+    private final int[] allpassAt = new int[allpasses.length];
+    private float[] input; // mono sum of the block, scaled
+    private float[] wetLeft;
+    private float[] wetRight;
+
+    /**
+     * Creates a reverb with a medium room and a light mix.
+     */
+    public Reverb() {
+        super("reverb", new SmoothedValue(0.25f, 0f, 1f), new SmoothedValue(0.5f, 0f, 1f), new SmoothedValue(0.5f, 0f, 1f));
+        for (int i = 0; i < COMBS.length; i++) {
+            combs[i] = new float[COMBS[i]];
+            combs[i + COMBS.length] = new float[COMBS[i] + SPREAD];
+        }
+        for (int i = 0; i < ALLPASSES.length; i++) {
+            allpasses[i] = new float[ALLPASSES[i]];
+            allpasses[i + ALLPASSES.length] = new float[ALLPASSES[i] + SPREAD];
+        }
+    }
+
+    @Override
+    protected void prepare(int maxFrames) {
+        input = new float[maxFrames];
+        wetLeft = new float[maxFrames];
+        wetRight = new float[maxFrames];
+    }
+
+    @Override
+    protected void reset() {
+        for (int i = 0; i < combs.length; i++) {
+            Arrays.fill(combs[i], 0f);
+            combAt[i] = 0;
+            combFilter[i] = 0f;
+        }
+        for (int i = 0; i < allpasses.length; i++) {
+            Arrays.fill(allpasses[i], 0f);
+            allpassAt[i] = 0;
+        }
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        for (int i = 0; i < frames; i++) {
+            input[i] = (buffer[i * 2] + buffer[i * 2 + 1]) * INPUT_GAIN;
+        }
+        float feedback = 0.7f + 0.28f * parameter(ROOM_SIZE).get();
+        float damp = 0.4f * parameter(DAMPING).get();
+        Arrays.fill(wetLeft, 0, frames, 0f);
+        Arrays.fill(wetRight, 0, frames, 0f);
+        for (int c = 0; c < COMBS.length; c++) {
+            comb(c, wetLeft, frames, feedback, damp);
+            comb(c + COMBS.length, wetRight, frames, feedback, damp);
+        }
+        for (int a = 0; a < ALLPASSES.length; a++) {
+            allpass(a, wetLeft, frames);
+            allpass(a + ALLPASSES.length, wetRight, frames);
+        }
+        float from = parameter(MIX).getPrevious() * WET_GAIN;
+        float step = (parameter(MIX).get() * WET_GAIN - from) / frames;
+        for (int i = 0; i < frames; i++) {
+            float wet = from + step * (i + 1);
+            buffer[i * 2] += wetLeft[i] * wet;
+            buffer[i * 2 + 1] += wetRight[i] * wet;
+        }
+    }
+
+    private void comb(int c, float[] out, int frames, float feedback, float damp) {
+        float[] line = combs[c];
+        int at = combAt[c];
+        float filter = combFilter[c];
+        for (int i = 0; i < frames; i++) {
+            float delayed = line[at];
+            out[i] += delayed;
+            filter = delayed * (1f - damp) + filter * damp;
+            line[at] = Biquad.flush(input[i] + filter * feedback);
+            if (++at == line.length) { at = 0; }
+        }
+        combAt[c] = at;
+        combFilter[c] = Biquad.flush(filter);
+    }
+
+    private void allpass(int a, float[] signal, int frames) {
+        float[] line = allpasses[a];
+        int at = allpassAt[a];
+        for (int i = 0; i < frames; i++) {
+            float delayed = line[at];
+            line[at] = Biquad.flush(signal[i] + delayed * ALLPASS_FEEDBACK);
+            signal[i] = delayed - signal[i];
+            if (++at == line.length) { at = 0; }
+        }
+        allpassAt[a] = at;
+    }
+}
@@ -0,0 +1,28 @@
+package padman.vinnsla;
+
+/**
+ A Sample is one decoded audio file that the AudioEngine can play.
+ However it is stored, a Sample hands out its frames as interleaved stereo floats in blocks,
+ so the mixer never needs to know the storage format.
+ */
+public abstract class Sample {
+
+    /**
+     * @return the number of stereo frames in the sample
+     */
+    public abstract int getFrames();
+
+    /**
+     * Copies frames into dst as interleaved left/right floats in the range -1..1.
+     * @param frame the first frame to copy
+     * @param dst the buffer to fill, at least frames * 2 long
+     * @param frames the number of frames wanted
+     * @return the number of frames copied, less than frames when the end of the sample is reached
+     */
+    public abstract int read(int frame, float[] dst, int frames);
+
+    /**
+     * @return the number of bytes used to hold the sample data
+     */
+    public abstract long getBytes();
+}
@@ -0,0 +1,396 @@
+package padman.vinnsla;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ A SampleBank decodes a folder of audio files once and keeps them in a compact format.
+ Playing a sample from the bank only hands its Sample to the engine, nothing is decoded again.
+ <p>
+ For the piano folder (65 stereo float files) FLOAT32 keeps about 184 MB,
+ INT16 about 92 MB and MONO16 about 46 MB.
+ <p>
+ A folder can also be memory mapped with mapFolder instead of decoded. Mapping only reads the
+ file headers, so it takes the same few milliseconds whatever the size of the folder, and
+ warmUp pages the samples in on a background thread, nearest the keys in use first.
+ <p>
+ Both can load only every rootStep-th file of a chromatic folder. The notes in between are played
+ from the nearest loaded root as ResampledSamples, so a root every 4 semitones loads 17 of the 65
+ piano files and takes about a quarter of the memory. With setResampleCache the most recently
+ played of those notes are kept rendered, so they cost no more to mix than a loaded note.
+ <p>
+ Folders may hold SamplePack files (.pack) instead of WAV files, about a tenth of the size
+ on disk; their attacks are decoded on loading and their tails in the background.
+ */
+public class SampleBank {
+    private final SampleFormat format;
+    private final boolean offHeap;
+    // shared by every bank, so banks dropped from the library leave no thread behind
+    private static final ExecutorService WARMER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "PadMan sample warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final List<Sample> samples = new ArrayList<>();
+    private Future<?> warming;
+    private ResampleCache cache;
+
+    /**
+     * Creates an empty bank.
+     * @param format the format decoded samples are stored in
+     * @param offHeap true to store samples in direct buffers outside the Java heap
+     */
+    public SampleBank(SampleFormat format, boolean offHeap) {
+        this.format = format;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Decodes every .wav file in a folder, in file name order, and adds them to the bank.
+     * @param folder the folder containing the samples
+     * @throws IOException if the folder or one of the files cannot be read or decoded
+     */
+    public void loadFolder(File folder) throws IOException {
+        loadFolder(folder, 1, Interpolation.CUBIC);
+    }
+
+    /**
+     * Decodes every rootStep-th .wav or .pack file in a folder of one file per semitone, in file name order,
+     * and adds a sample for every file to the bank. The files not decoded are played from the nearest
+     * decoded one, shifted in pitch.
+     * @param folder the folder containing the samples
+     * @param rootStep the number of semitones between decoded files, 1 to decode them all
+     * @param interpolation how the notes in between are resampled
+     * @throws IOException if the folder or one of the files cannot be read or decoded
+     */
+    public void loadFolder(File folder, int rootStep, Interpolation interpolation) throws IOException {
+        File[] files = folder.listFiles((dir, name) -> isSampleFile(name));
+        if (files == null) { throw new IOException("Not a folder: " + folder); }
+        Arrays.sort(files);
+        addFiles(Arrays.stream(files).map(File::toPath).toList(), rootStep, interpolation, false, Map.of());
+    }
+
+    /**
+     * Memory maps every .wav file in a folder, in file name order, and adds them to the bank.
+     * 44.1 kHz WAV files in 32 bit float or 16 bit PCM are played in their own format. Any other
+     * file (sPno_C7_0.wav is really an AIFF file) is decoded into the format of the bank instead.
+     * @param folder the folder containing the samples
+     * @throws IOException if the folder or one of the files cannot be read
+     */
+    public void mapFolder(Path folder) throws IOException {
+        mapFolder(folder, 1, Interpolation.CUBIC);
+    }
+
+    /**
+     * Memory maps every rootStep-th .wav file, or reads every .pack file, in a folder of one file per semitone, in file name order,
+     * and adds a sample for every file to the bank. The files not mapped are played from the nearest
+     * mapped one, shifted in pitch.
+     * @param folder the folder containing the samples
+     * @param rootStep the number of semitones between mapped files, 1 to map them all
+     * @param interpolation how the notes in between are resampled
+     * @throws IOException if the folder or one of the files cannot be read
+     */
+    public void mapFolder(Path folder, int rootStep, Interpolation interpolation) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(folder)) {
+            files = list.filter(p -> isSampleFile(p.getFileName().toString())).sorted().toList();
+        }
+        addFiles(files, rootStep, interpolation, true, Map.of());
+    }
+
+    /**
+     * Adds a sample for every file in a list of one file per semitone, opening only every rootStep-th
+     * file and playing the others from the nearest opened one. Files are opened in parallel, on the
+     * pool of the calling thread if it is a ForkJoinPool thread.
+     * @param files the files, lowest note first
+     * @param rootStep the number of semitones between opened files, 1 to open them all
+     * @param interpolation how the notes in between are resampled
+     * @param map true to memory map WAV files, false to decode them
+     * @param loops loop start and end frames by file name, for files that loop while held
+     * @throws IOException if one of the files cannot be read
+     */
+    void addFiles(List<Path> files, int rootStep, Interpolation interpolation, boolean map,
+                  Map<String, int[]> loops) throws IOException {
+        Sample[] opened = new Sample[files.size()];
+        try {
+            IntStream.range(0, files.size()).parallel().filter(i -> isRoot(i, files.size(), rootStep)).forEach(i -> {
+                try {
+                    Sample sample = open(files.get(i), map);
+                    int[] loop = loops.get(files.get(i).getFileName().toString());
+                    opened[i] = loop == null ? sample : new LoopedSample(sample, loop[0], loop[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int base = samples.size();
+        samples.addAll(Arrays.asList(opened));
+        fillBetweenRoots(base, files.size(), rootStep, interpolation);
+    }
+
+    private Sample open(Path file, boolean map) throws IOException {
+        if (isPack(file.getFileName().toString())) {
+            return new PackedSample(file);
+        }
+        if (map) {
+            try {
+                return new MappedSample(file);
+            } catch (IOException e) {
+                // not a WAV file that can be played as it is, decode it below
+            }
+        }
+        try {
+            return new PcmSample(decode(file.toFile()), format, offHeap);
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio file " + file, e);
+        }
+    }
+
+    private static boolean isSampleFile(String name) {
+        return name.endsWith(".wav") || isPack(name);
+    }
+
+    private static boolean isPack(String name) {
+        return name.endsWith(SamplePack.EXTENSION);
+    }
+
+    private static boolean isRoot(int i, int count, int rootStep) {
+        return rootStep <= 1 || i % rootStep == 0 || i == count - 1;
+    }
+
+    /**
+     * Replaces the empty places left for the files that were not loaded with the nearest root, resampled.
+     */
+    private void fillBetweenRoots(int base, int count, int rootStep, Interpolation interpolation) {
+        for (int i = 0; i < count; i++) {
+            if (isRoot(i, count, rootStep)) { continue; }
+            int below = i - i % rootStep;
+            int above = Math.min(below + rootStep, count - 1);
+            int root = i - below <= above - i ? below : above;
+            samples.set(base + i, new ResampledSample(samples.get(base + root), i - root, interpolation));
+        }
+    }
+
+    /**
+     * Keeps rendered copies of the most recently played resampled notes, up to a number of bytes.
+     * @param budget the most bytes the copies may take, 0 to always interpolate
+     */
+    public synchronized void setResampleCache(long budget) {
+        cache = budget > 0 ? new ResampleCache(budget, format, offHeap, WARMER) : null;
+    }
+
+    /**
+     * @return the number of resampled notes kept rendered
+     */
+    public synchronized int getResampleCacheSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * Finds a sample folder on the file system from a resource URL. A folder inside a jar is
+     * extracted once to the temporary directory, since entries in a jar cannot be mapped.
+     * @param url the URL of the folder, from Class.getResource
+     * @return a folder on the default file system
+     * @throws IOException if the folder cannot be found or extracted
+     */
+    public static Path resolveFolder(URL url) throws IOException {
+        if (url == null) { throw new IOException("Sample folder not found"); }
+        URI uri;
+        try {
+            uri = url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if ("file".equals(uri.getScheme())) {
+            return Path.of(uri);
+        }
+        if ("jar".equals(uri.getScheme())) {
+            return extract(uri);
+        }
+        throw new IOException("Cannot load samples from " + url);
+    }
+
+    private static Path extract(URI uri) throws IOException {
+        FileSystem jar;
+        boolean opened = false;
+        try {
+            jar = FileSystems.newFileSystem(uri, Map.of());
+            opened = true;
+        } catch (FileSystemAlreadyExistsException e) {
+            jar = FileSystems.getFileSystem(uri);
+        }
+        try {
+            Path source = jar.provider().getPath(uri);
+            Path target = Path.of(System.getProperty("java.io.tmpdir"), "padman-samples", source.getFileName().toString());
+            Files.createDirectories(target);
+            try (Stream<Path> list = Files.list(source)) {
+                for (Path file : (Iterable<Path>) list::iterator) {
+                    Path copy = target.resolve(file.getFileName().toString());
+                    if (!Files.exists(copy) || Files.size(copy) != Files.size(file)) {
+                        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+            return target;
+        } finally {
+            if (opened) { jar.close(); }
+        }
+    }
+
+    /**
+     * Pages mapped samples in on a background thread, starting with the samples from first to last
+     * and then working outwards from them. A new call replaces any warm-up still running.
+     * @param first the lowest sample index in use
+     * @param last the highest sample index in use
+     */
+    public synchronized void warmUp(int first, int last) {
+        if (warming != null) { warming.cancel(true); }
+        List<Sample> snapshot = List.copyOf(samples);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) { order.add(i); }
+        order.sort(Comparator.comparingInt(i -> i < first ? first - i : i > last ? i - last : 0));
+        warming = WARMER.submit(() -> {
+            for (int i : order) {
+                if (Thread.currentThread().isInterrupted()) { return; }
+                Sample sample = snapshot.get(i);
+                if (sample instanceof ResampledSample resampled) {
+                    sample = resampled.getRoot();
+                }
+                if (sample instanceof LoopedSample looped) {
+                    sample = looped.getSource();
+                }
+                if (sample instanceof MappedSample mapped) {
+                    mapped.warm();
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes one audio file and adds it to the end of the bank.
+     * @param file the audio file
+     * @return the index of the new sample
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public int load(File file) throws IOException {
+        try {
+            return add(decode(file));
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio file " + file, e);
+        }
+    }
+
+    /**
+     * Adds already decoded frames to the end of the bank, stored in the bank's format.
+     * @param data interleaved left/right samples in the range -1..1
+     * @return the index of the new sample
+     */
+    public int add(float[] data) {
+        samples.add(new PcmSample(data, format, offHeap));
+        return samples.size() - 1;
+    }
+
+    /**
+     * Decodes an audio file into interleaved stereo floats. Mono files are copied to both channels.
+     */
+    static float[] decode(File file) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+            AudioFormat source = in.getFormat();
+            int channels = source.getChannels();
+            AudioFormat target = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, source.getSampleRate(),
+                    32, channels, channels * 4, source.getSampleRate(), false);
+            byte[] bytes;
+            try (AudioInputStream decoded = AudioSystem.getAudioInputStream(target, in)) {
+                bytes = decoded.readAllBytes();
+            }
+            FloatBuffer floats = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            int frames = floats.remaining() / channels;
+            float[] data = new float[frames * 2];
+            for (int i = 0; i < frames; i++) {
+                float left = floats.get(i * channels);
+                float right = channels > 1 ? floats.get(i * channels + 1) : left;
+                data[i * 2] = left;
+                data[i * 2 + 1] = right;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * @param index the index of the sample
+     * @return the sample, or null if there is no sample with that index
+     */
+    public Sample get(int index) {
+        if (index < 0 || index >= samples.size()) { return null; }
+        Sample sample = samples.get(index);
+        ResampleCache cache = this.cache;
+        if (sample instanceof ResampledSample resampled) {
+            if (resampled.getRoot() instanceof PackedSample packed) { packed.hurry(); }
+            if (cache != null) { cache.touch(resampled); }
+        } else if (sample instanceof PackedSample packed) {
+            packed.hurry();
+        }
+        return sample;
+    }
+
+    /**
+     * @return the number of samples in the bank
+     */
+    public int size() {
+        return samples.size();
+    }
+
+    /**
+     * @return the format samples are stored in
+     */
+    public SampleFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the number of bytes used by all samples in the bank
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Sample sample : samples) {
+            bytes += sample.getBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return samples.size() + " samples, " + format + (offHeap ? " off-heap" : "") + ", "
+                + (getBytes() / (1024 * 1024)) + " MB";
+    }
+}
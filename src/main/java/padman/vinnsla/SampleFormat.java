@@ -0,0 +1,26 @@
+package padman.vinnsla;
+
+/**
+ The formats a SampleBank can keep decoded samples in.
+ */
+public enum SampleFormat {
+    /** Stereo 32 bit float, identical to the source files. 8 bytes per frame. */
+    FLOAT32(8),
+    /** Stereo 16 bit integer. 4 bytes per frame. */
+    INT16(4),
+    /** Left and right summed to one 16 bit channel and played on both sides. 2 bytes per frame. */
+    MONO16(2);
+
+    private final int bytesPerFrame;
+
+    SampleFormat(int bytesPerFrame) {
+        this.bytesPerFrame = bytesPerFrame;
+    }
+
+    /**
+     * @return the number of bytes one frame takes in this format
+     */
+    public int getBytesPerFrame() {
+        return bytesPerFrame;
+    }
+}
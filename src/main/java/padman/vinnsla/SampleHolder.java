@@ -1,151 +1,345 @@
 package padman.vinnsla;
 
-import javafx.animation.KeyFrame;
-import javafx.animation.KeyValue;
-import javafx.animation.Timeline;
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
-import javafx.util.Duration;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.sound.sampled.LineUnavailableException;
 import java.io.File;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  The SampleHolder handles importing audio samples and playing them.
- It can store up to N MediaPlayers, and when the limit is reached, the longest-playing
- MediaPlayer will be stopped and replaced with a new one.
+ Each sample folder is an Instrument in a SampleLibrary, and the keys play the selected one.
+ Samples are memory mapped on import and played through a shared AudioEngine, which can sound
+ up to N voices at once. When the limit is reached the quietest fading voice, or else the oldest, is stopped.
+ The size of the engine's render block can be set with the padman.bufferFrames system property,
+ the number of voices with padman.voices and the number of threads helping to mix large blocks
+ with padman.mixThreads (by default one less than the number of cores, at most three).
+ With padman.decode=true samples are decoded up front instead, in the format given by
+ padman.sampleFormat (FLOAT32, INT16 or MONO16) and padman.offHeap.
+ With padman.rootStep=3 or 4 only every third or fourth sample file is loaded and the notes in
+ between are resampled from the nearest one (padman.interpolation LINEAR or CUBIC); the
+ padman.resampleCacheMB most recently played of those are kept rendered.
+ MIDI devices are opened with openMidi; padman.midiDevice limits this to devices whose name
+ contains the given text.
+ Further instrument folders listed in padman.instruments (separated like a class path) are loaded
+ in the background. The library keeps to padman.libraryMB of samples, dropping the instruments
+ used least recently.
+ padman.stereoWidth (0 to 1, default 0) spreads the keys from left to right. Mixing uses the Vector
+ API when the JVM is started with --add-modules jdk.incubator.vector, unless padman.vector=false.
+ The mix goes through the engine's effects: padman.reverb (0 to 1, default 0) sets the reverb, and
+ padman.limiter=false switches the limiter off.
+ With padman.netPort set, a NoteServer plays notes sent over UDP to that port, holding them back
+ padman.netJitterMs (default 10) to even out the network and playing at most padman.netMaxNotes
+ note ons a second (default 1000, 0 for no limit).
  */
 public class SampleHolder {
-    private static final int N = 23; // number of media players
-    private static Map<Integer, Media> mediasKeyMap = new HashMap<>(); // map of Medias to integer keys
-    private static Queue<MediaPlayer> mediaPlayers = new LinkedList<>(); // queue currently used MediaPlayers
-    public static Queue<MediaPlayer> getMediaPlayers() {
-        return mediaPlayers;
+    private static final int N = Integer.getInteger("padman.voices", 128); // number of voices
+    private static final int MIX_THREADS = Integer.getInteger("padman.mixThreads",
+            Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int BUFFER_FRAMES = Integer.getInteger("padman.bufferFrames", AudioEngine.DEFAULT_BUFFER_FRAMES);
+    private static final SampleFormat FORMAT = SampleFormat.valueOf(System.getProperty("padman.sampleFormat", "INT16"));
+    private static final boolean DECODE = Boolean.getBoolean("padman.decode");
+    private static final int ROOT_STEP = Integer.getInteger("padman.rootStep", 1);
+    private static final Interpolation INTERPOLATION = Interpolation.valueOf(System.getProperty("padman.interpolation", "CUBIC"));
+    private static SampleLibrary library = new SampleLibrary(Long.getLong("padman.libraryMB", 1024) * 1024 * 1024,
+            FORMAT, Boolean.getBoolean("padman.offHeap"), libraryDefaults());
+    private static AudioEngine engine = new AudioEngine(BUFFER_FRAMES, N, MIX_THREADS);
+    static {
+        engine.setStereoWidth(Double.parseDouble(System.getProperty("padman.stereoWidth", "0")));
+        setReverb(Double.parseDouble(System.getProperty("padman.reverb", "0")));
+        engine.setEffectBypassed(AudioEngine.LIMITER, "false".equals(System.getProperty("padman.limiter")));
     }
-    private static double mainVolume = 1.0; // volume of all MediaPlayers
+    private static MidiInput midi;
+    private static NoteServer network;
+    private static final String METRICS_NAME = "padman:type=AudioEngine";
 
-    private static double releaseTime = 0.85;
+    private static Properties libraryDefaults() {
+        Properties defaults = new Properties();
+        defaults.setProperty("rootStep", "" + ROOT_STEP);
+        defaults.setProperty("interpolation", INTERPOLATION.name());
+        return defaults;
+    }
 
     /**
-     Reads audio samples from a folder, creates the Media objects and adds them to the mediasKeyMap.
-     @param folderPath the path to the folder containing the audio samples
+     Reads a folder of audio samples into the library as an instrument, mapping or decoding them,
+     and waits for it. The instruments in padman.instruments are then loaded in the background.
+     @param folder the folder containing the audio samples
      */
-    private static void importSamples(String folderPath) {
-
-        File folder = new File(folderPath);
-        File[] files = folder.listFiles((dir, name)
-                -> name.endsWith(".wav") || name.endsWith(".mp3"));
-        assert files != null;
-        Arrays.sort(files);
-        for (int i = 0; i < files.length; i++) {
-            Media media = new Media(files[i].toURI().toString());
-            mediasKeyMap.put(i, media);
+    private static void importSamples(Path folder) {
+        library.setMap(!DECODE);
+        library.setResampleCache(Long.getLong("padman.resampleCacheMB", 32) * 1024 * 1024);
+        try {
+            library.load(folder).join();
+        } catch (CompletionException e) {
+            System.err.println("Could not load samples from " + folder + ": " + e.getCause().getMessage());
         }
-    }
-    // Method to set the volume of all current media players
-    public static void setVolume(double volume) {
-        for (MediaPlayer mediaPlayer : SampleHolder.getMediaPlayers()) {
-            mediaPlayer.setVolume(volume);
+        String more = System.getProperty("padman.instruments", "");
+        for (String other : more.split(File.pathSeparator)) {
+            if (!other.isBlank()) { loadInstrument(Path.of(other.strip())); }
         }
-        mainVolume = volume;
     }
 
     /**
-     Adds a MediaPlayer to the Que and sets up an end of media event handler
-     that will dispose of it and remove it from the queue when it finishes playing.
-     @param mediaPlayer the MediaPlayer to set up
+     Loads an instrument folder into the library in the background. Errors are reported, not thrown.
+     @param folder the instrument folder
+     @return the instrument once loaded
      */
-    private static void setupMediaPlayer(MediaPlayer mediaPlayer) {
-        mediaPlayers.offer(mediaPlayer);
-        mediaPlayer.setVolume(mainVolume);
-        mediaPlayer.setOnEndOfMedia(() -> {
-            mediaPlayer.stop();
-            mediaPlayer.dispose();
-            mediaPlayers.remove(mediaPlayer);
+    public static CompletableFuture<Instrument> loadInstrument(Path folder) {
+        return library.load(folder).whenComplete((instrument, e) -> {
+            if (e != null) {
+                System.err.println("Could not load instrument " + folder + ": " + e.getCause().getMessage());
+            }
         });
     }
 
     /**
-     Checks if there is a MediaPlayer playing the given Media that can be reused.
-     @param media the Media to check
-     @return a MediaPlayer that can be reused, or null if none is found
+     Makes the keys play the next instrument in the library. Notes already sounding carry on.
+     @return the name of the instrument now playing, or null if none is loaded
      */
-    private static MediaPlayer mediaplayerIsReusable(Media media) {
-        for (MediaPlayer mediaPlayer : mediaPlayers) {
-            if (mediaPlayer.getMedia().equals(media) && !(mediaPlayer.getStatus() == MediaPlayer.Status.PLAYING)) {
-                return mediaPlayer;
-            }
-        } return null;
+    public static String selectNextInstrument() {
+        Instrument instrument = library.selectNext();
+        return instrument == null ? null : instrument.getName();
     }
 
     /**
-     Plays the media associated with the given key. If there is a reusable MediaPlayer
-     for the sample, it will be used. If the limit of N MediaPlayers has not been reached,
-     a new MediaPlayer will be created and used. If the limit has been reached, the longest-playing
-     MediaPlayer will be stopped and replaced with a new one.
-     @param key the key associated with media to be played
+     * @return the name of the instrument the keys play, or an empty string if none is loaded
      */
-    public static void playMedia(int key) {
-        Media media = mediasKeyMap.get(key);
-        MediaPlayer reusable = mediaplayerIsReusable(media);
-        if (reusable != null){
-            setupMediaPlayer(reusable);
-            reusable.play();
+    public static String getInstrumentName() {
+        Instrument instrument = library.getSelected();
+        return instrument == null ? "" : instrument.getName();
+    }
+
+    /**
+     Starts the audio engine if it is not already running, registers its metrics
+     with JMX as padman:type=AudioEngine, and opens the network port if padman.netPort is set.
+     */
+    private static void startEngine() {
+        EngineMetrics metrics = engine.getMetrics();
+        metrics.setSampleBytes(library::getBytes);
+        try {
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(METRICS_NAME))) {
+                metrics.register(METRICS_NAME);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register engine metrics: " + e.getMessage());
         }
-        if (mediaPlayers.size() < N) {
-            MediaPlayer newMp = new MediaPlayer(media);
-            setupMediaPlayer(newMp);
-            newMp.play();
-        } else {
-            MediaPlayer longestPlaying = mediaPlayers.poll();
-            assert longestPlaying != null;
-            longestPlaying.stop();
-            MediaPlayer newPlayer = new MediaPlayer(media);
-            setupMediaPlayer(newPlayer);
-            newPlayer.play();
+        try {
+            engine.start();
+        } catch (LineUnavailableException e) {
+            System.err.println("No audio output available: " + e.getMessage());
         }
-        setFade();
-    }
-    public static void setFade(int keyIndex) {
-        Media media = mediasKeyMap.get(keyIndex);
-        for (MediaPlayer mediaPlayer : mediaPlayers) {
-            if (mediaPlayer.getStatus() == MediaPlayer.Status.PLAYING && mediaPlayer.getMedia().equals(media)) {
-                mediaPlayers.remove(mediaPlayer);
-                Timeline timeline = new Timeline(
-                        new KeyFrame(Duration.seconds(releaseTime), new KeyValue(mediaPlayer.volumeProperty(), 0)));
-                timeline.setOnFinished(event -> {
-                    mediaPlayer.stop();
-                    mediaPlayer.dispose();
-                });
-                timeline.play();
-                return;
+        Integer port = Integer.getInteger("padman.netPort");
+        if (port != null && network == null) {
+            try {
+                network = new NoteServer(engine, library, port,
+                        Double.parseDouble(System.getProperty("padman.netJitterMs", "10")),
+                        Integer.getInteger("padman.netMaxNotes", 1000));
+            } catch (IOException e) {
+                System.err.println("Could not open network port " + port + ": " + e.getMessage());
             }
         }
     }
+
+    // Method to set the volume of all current voices
+    public static void setVolume(double volume) {
+        engine.setVolume(volume);
+    }
+
+    /**
+     Sets how much reverb is added to the mix. At 0 the reverb is switched off and costs nothing.
+     @param amount 0 to 1
+     */
+    public static void setReverb(double amount) {
+        if (amount > 0) { engine.setEffectParameter(AudioEngine.REVERB, Reverb.MIX, amount); }
+        engine.setEffectBypassed(AudioEngine.REVERB, amount <= 0);
+    }
+
+    /**
+     Tilts the sound darker or brighter: the treble goes up and the bass down by the same amount, or
+     the other way round. At 0 the equalizer is switched off and costs nothing.
+     @param db -12 to 12, positive for brighter
+     */
+    public static void setTone(double db) {
+        engine.setEffectParameter(AudioEngine.EQUALIZER, Equalizer.LOW, -db);
+        engine.setEffectParameter(AudioEngine.EQUALIZER, Equalizer.HIGH, db);
+        engine.setEffectBypassed(AudioEngine.EQUALIZER, db == 0);
+    }
+
+    /**
+     Sets the attack, decay, sustain and release of the notes played from now on.
+     @param attack attack time in seconds
+     @param decay decay time in seconds
+     @param sustain sustain level between 0 and 1
+     @param release release time in seconds
+     */
+    public static void setEnvelope(double attack, double decay, double sustain, double release) {
+        engine.setAttackTime(attack);
+        engine.setDecayTime(decay);
+        engine.setSustainLevel(sustain);
+        engine.setReleaseTime(release);
+    }
+
+    /**
+     Plays the sample associated with the given key. If N voices are already sounding,
+     the quietest fading voice, or else the oldest, will be stopped to make room for it.
+     @param key the key associated with the sample to be played
+     */
+    public static void playMedia(int key) {
+        Instrument instrument = library.getSelected();
+        Sample sample = instrument == null ? null : instrument.get(key);
+        if (sample == null) { return; }
+        engine.noteOn(sample, key);
+    }
+
+    /**
+     Fades out the voice playing the given key over the engine's release time.
+     @param keyIndex the key that was released
+     */
+    public static void setFade(int keyIndex) {
+        engine.noteOff(keyIndex);
+    }
+
+    /**
+     Fades out every voice that is still sounding over the engine's release time.
+     */
     public static void setFade() {
-        for (MediaPlayer mediaPlayer : mediaPlayers) {
-            if (mediaPlayer.getStatus() == MediaPlayer.Status.PLAYING) {
-                mediaPlayers.remove(mediaPlayer);
-                Timeline timeline = new Timeline(
-                        new KeyFrame(Duration.seconds(releaseTime), new KeyValue(mediaPlayer.volumeProperty(), 0)));
-                timeline.setOnFinished(event -> {
-                    // mediaPlayer.stop();
-                    mediaPlayer.dispose();
-                });
-                timeline.play();
-                return;
-            }
+        engine.allNotesOff();
+    }
+
+    /**
+     Presses or lifts the sustain pedal. Keys let go of while it is down keep sounding until it is lifted.
+     @param down true to press the pedal
+     */
+    public static void setSustain(boolean down) {
+        engine.setSustain(down);
+    }
+
+    /**
+     The loop button: records a loop, closes it and plays it, or records and adds an overdub.
+     */
+    public static void loop() {
+        engine.loop();
+    }
+
+    /**
+     Stops the loop playing, or clears it if it is already stopped.
+     */
+    public static void stopLoop() {
+        engine.stopLoop();
+    }
+
+    /**
+     Drops the overdub being recorded, or else the newest overdub of the loop.
+     */
+    public static void undoLoop() {
+        engine.undoLoop();
+    }
+
+    /**
+     @return what the looper is doing
+     */
+    public static Looper.State getLoopState() {
+        return engine.getLooper().getState();
+    }
+
+    /**
+     Saves the loop to a file.
+     @param file the file to write
+     @throws IOException if the file cannot be written
+     */
+    public static void saveLoop(Path file) throws IOException {
+        Loop copy = engine.copyLoop();
+        if (copy == null) { throw new IOException("The audio thread did not copy the loop in time"); }
+        copy.save(file);
+    }
+
+    /**
+     Loads a saved loop and plays it on the selected instrument, replacing the loop playing.
+     @param file the loop file
+     @throws IOException if the file cannot be read or is not a loop
+     */
+    public static void loadLoop(Path file) throws IOException {
+        engine.playLoop(Loop.load(file, library.getSelected()));
+    }
+
+    /**
+     Opens the MIDI input devices so they play through the engine. The keys they hold show in getHeldKeys.
+     @return the number of devices opened
+     */
+    public static int openMidi() {
+        if (midi == null) {
+            midi = new MidiInput(engine, library);
         }
+        return midi.open(System.getProperty("padman.midiDevice"));
     }
 
     /**
-     * Calls the importSamples method with the given folder path.
+     Sets the transposition MIDI notes are played at, from devices and over the network.
+     @param transposition semitones above C, 0 to 11
+     */
+    public static void setMidiTransposition(int transposition) {
+        if (midi != null) { midi.setTransposition(transposition); }
+        if (network != null) { network.setTransposition(transposition); }
+    }
+
+    /**
+     Copies the keys held down into a bitset, whether by the keyboard, MIDI or a loop.
+     @param into at least AudioEngine.MAX_KEYS / 64 words; key k is bit k % 64 of word k / 64
+     */
+    public static void getHeldKeys(long[] into) {
+        engine.getHeldKeys(into);
+    }
+
+    /**
+     * @return the SampleLibrary holding the instruments
+     */
+    public static SampleLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * @return the AudioEngine the samples are played through
+     */
+    public static AudioEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Calls the importSamples method with the given folder path and starts the audio engine.
      @param folderPath the path of the folder containing the media files to be imported
      */
     public static void importSamplesFromFolder(String folderPath) {
-        importSamples(folderPath);
+        importSamples(Path.of(folderPath));
+        startEngine();
+    }
+
+    /**
+     * Imports the samples in a resource folder, which may be inside the application jar,
+     * and starts the audio engine.
+     @param folderUrl the URL of the folder, from Class.getResource
+     */
+    public static void importSamplesFromResource(URL folderUrl) {
+        try {
+            importSamples(SampleBank.resolveFolder(folderUrl));
+        } catch (IOException e) {
+            System.err.println("Could not find samples at " + folderUrl + ": " + e.getMessage());
+        }
+        startEngine();
+    }
+
+    /**
+     * Pages the samples between the given keys into memory in the background, nearest keys first.
+     @param firstKey the lowest key in use
+     @param lastKey the highest key in use
+     */
+    public static void warmUp(int firstKey, int lastKey) {
+        Instrument instrument = library.getSelected();
+        if (instrument != null) { instrument.warmUp(firstKey, lastKey); }
     }
-}
\ No newline at end of file
+}
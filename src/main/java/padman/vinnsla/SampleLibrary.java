@@ -0,0 +1,199 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ A SampleLibrary holds several Instruments and knows which one the keys play. Instruments are loaded
+ on a pool of background threads, their files in parallel, and selecting one only swaps a reference:
+ voices keep the Sample they started with, so notes already sounding ring out on the old instrument.
+ <p>
+ The library keeps the instruments within a memory budget. When a newly loaded instrument takes it
+ over, the instruments selected least recently are dropped, never the selected one. Dropping only
+ forgets the instrument; its samples stay alive until the last voice playing them has finished.
+ */
+public class SampleLibrary {
+    private final long budget;
+    private final SampleFormat format;
+    private final boolean offHeap;
+    private final Properties defaults;
+    private final ForkJoinPool loaders = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+            pool -> {
+                var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("PadMan bank loader " + thread.getPoolIndex());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }, null, false);
+    private final LinkedHashMap<String, Instrument> instruments = new LinkedHashMap<>(16, 0.75f, true); // least recently selected first
+    private final List<Consumer<Instrument>> listeners = new ArrayList<>();
+    private long resampleCache = 0;
+    private boolean map = true;
+    private volatile Instrument selected;
+
+    /**
+     * Creates an empty library.
+     * @param budget the most bytes the instruments together should take
+     * @param format the format decoded samples are stored in
+     * @param offHeap true to store decoded samples outside the Java heap
+     * @param defaults rootStep and interpolation for instruments whose manifest gives none
+     */
+    public SampleLibrary(long budget, SampleFormat format, boolean offHeap, Properties defaults) {
+        this.budget = budget;
+        this.format = format;
+        this.offHeap = offHeap;
+        this.defaults = defaults;
+    }
+
+    /**
+     * @param map true to memory map WAV files, false to decode them when loading
+     */
+    public synchronized void setMap(boolean map) {
+        this.map = map;
+    }
+
+    /**
+     * @param budget bytes of rendered resampled notes each instrument layer may keep, 0 for none
+     */
+    public synchronized void setResampleCache(long budget) {
+        this.resampleCache = budget;
+    }
+
+    /**
+     * Loads an instrument folder in the background and adds it to the library, replacing any
+     * instrument of the same name. The first instrument loaded is selected.
+     * @param folder the instrument folder
+     * @return the instrument once loaded; completes exceptionally if it cannot be loaded
+     */
+    public CompletableFuture<Instrument> load(Path folder) {
+        boolean map;
+        long resampleCache;
+        synchronized (this) {
+            map = this.map;
+            resampleCache = this.resampleCache;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Instrument instrument = Instrument.load(folder, format, offHeap, map, defaults);
+                instrument.setResampleCache(resampleCache);
+                add(instrument);
+                return instrument;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, loaders);
+    }
+
+    /**
+     * Adds an instrument that is already loaded, replacing any instrument of the same name.
+     * The first instrument added is selected, and so is one replacing the selected instrument.
+     * @param instrument the instrument
+     */
+    public void add(Instrument instrument) {
+        boolean select;
+        synchronized (this) {
+            instruments.put(instrument.getName(), instrument);
+            select = selected == null || selected.getName().equals(instrument.getName());
+            if (select) { selected = instrument; }
+            evict();
+        }
+        if (select) { tell(instrument); }
+    }
+
+    /**
+     * Drops the least recently selected instruments until the library is within budget or only
+     * the selected instrument is left.
+     */
+    private void evict() {
+        long bytes = 0;
+        for (Instrument instrument : instruments.values()) {
+            bytes += instrument.getBytes();
+        }
+        var oldest = instruments.values().iterator();
+        while (bytes > budget && oldest.hasNext()) {
+            Instrument instrument = oldest.next();
+            if (instrument == selected) { continue; }
+            bytes -= instrument.getBytes();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Makes the keys play another instrument. Notes already sounding carry on.
+     * @param name the name of the instrument
+     * @return false if there is no instrument of that name
+     */
+    public boolean select(String name) {
+        Instrument instrument;
+        synchronized (this) {
+            instrument = instruments.get(name); // also marks it as recently used
+            if (instrument == null) { return false; }
+            selected = instrument;
+        }
+        tell(instrument);
+        return true;
+    }
+
+    /**
+     * Selects the instrument after the selected one, in name order.
+     * @return the instrument now selected, or null if the library is empty
+     */
+    public Instrument selectNext() {
+        List<String> names = getNames();
+        if (names.isEmpty()) { return null; }
+        Instrument current = selected;
+        int at = current == null ? -1 : names.indexOf(current.getName());
+        select(names.get((at + 1) % names.size()));
+        return selected;
+    }
+
+    private void tell(Instrument instrument) {
+        List<Consumer<Instrument>> copy;
+        synchronized (this) {
+            copy = List.copyOf(listeners);
+        }
+        for (Consumer<Instrument> listener : copy) {
+            listener.accept(instrument);
+        }
+    }
+
+    /**
+     * @param listener told about every instrument selected, on the thread selecting it
+     */
+    public synchronized void addSelectionListener(Consumer<Instrument> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the instrument the keys play, or null if nothing is loaded yet
+     */
+    public Instrument getSelected() {
+        return selected;
+    }
+
+    /**
+     * @return the names of the instruments in the library, sorted
+     */
+    public synchronized List<String> getNames() {
+        return instruments.keySet().stream().sorted().toList();
+    }
+
+    /**
+     * @return the number of bytes the instruments in the library take
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (Map.Entry<String, Instrument> entry : instruments.entrySet()) {
+            bytes += entry.getValue().getBytes();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,60 @@
+package padman.vinnsla;
+
+/**
+ The MixKernel used when the Vector API is not available: plain loops, which the JIT unrolls
+ and, where the access pattern allows, vectorizes by itself.
+ */
+class ScalarMixKernel extends MixKernel {
+
+    @Override
+    void mix(float[] out, float[] src, float gainLeft, float gainRight, int frames) {
+        for (int i = 0; i < frames * 2; i += 2) {
+            out[i] += src[i] * gainLeft;
+            out[i + 1] += src[i + 1] * gainRight;
+        }
+    }
+
+    @Override
+    void mix(float[] out, float[] src, float[] env, float gainLeft, float gainRight, int frames) {
+        for (int i = 0; i < frames; i++) {
+            out[i * 2] += src[i * 2] * (env[i] * gainLeft);
+            out[i * 2 + 1] += src[i * 2 + 1] * (env[i] * gainRight);
+        }
+    }
+
+    @Override
+    void add(float[] out, float[] src, int samples) {
+        for (int i = 0; i < samples; i++) {
+            out[i] += src[i];
+        }
+    }
+
+    @Override
+    void scale(float[] buffer, float gain, int samples) {
+        for (int i = 0; i < samples; i++) {
+            buffer[i] *= gain;
+        }
+    }
+
+    @Override
+    void ramp(float[] env, int from, float start, float step, int n) {
+        for (int k = 0; k < n; k++) {
+            env[from + k] = start + step * (k + 1);
+        }
+    }
+
+    @Override
+    void toPcm16(float[] in, byte[] out, int frames) {
+        for (int i = 0; i < frames * 2; i++) {
+            float s = Math.max(-1f, Math.min(1f, in[i]));
+            short v = (short) (s * Short.MAX_VALUE);
+            out[i * 2] = (byte) v;
+            out[i * 2 + 1] = (byte) (v >> 8);
+        }
+    }
+
+    @Override
+    String getName() {
+        return "scalar";
+    }
+}
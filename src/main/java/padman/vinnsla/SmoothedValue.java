@@ -0,0 +1,74 @@
+package padman.vinnsla;
+
+/**
+ A SmoothedValue is an effect parameter that glides to a new setting instead of jumping to it.
+ Its target is set on the audio thread when a parameter event is drained, and every block moves
+ the value a share of the way there, so it gets most of the way within about 50 ms whatever the
+ block size.
+ Effects read it once per block: get() is where the block should end up and getPrevious()
+ where the last block ended, for effects that ramp a gain across the block.
+ */
+public final class SmoothedValue {
+    private final float min;
+    private final float max;
+    private float target;
+    private float value;
+    private float previous;
+
+    /**
+     * @param initial the value before anything is set
+     * @param min the lowest value it can be set to
+     * @param max the highest value it can be set to
+     */
+    public SmoothedValue(float initial, float min, float max) {
+        this.min = min;
+        this.max = max;
+        this.target = this.value = this.previous = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * Sets the value to glide to, clamped to its range. Audio thread only.
+     */
+    void set(float target) {
+        this.target = Math.max(min, Math.min(max, target));
+    }
+
+    /**
+     * Moves the value towards its target for the next block. Audio thread only.
+     * @param coefficient the share of the way to go, from EffectChain
+     */
+    void advance(float coefficient) {
+        previous = value;
+        if (value == target) { return; }
+        value += (target - value) * coefficient;
+        if (Math.abs(target - value) <= (max - min) * 1e-4f) { value = target; }
+    }
+
+    /**
+     * Jumps straight to the target, for an effect starting afresh. Audio thread only.
+     */
+    void settle() {
+        value = previous = target;
+    }
+
+    /**
+     * @return the value for the block being processed
+     */
+    public float get() {
+        return value;
+    }
+
+    /**
+     * @return the value the last block was processed at
+     */
+    public float getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return true if the value changed since the last block, so anything derived from it needs working out again
+     */
+    public boolean isMoving() {
+        return value != previous;
+    }
+}
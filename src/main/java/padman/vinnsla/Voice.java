@@ -0,0 +1,101 @@
+package padman.vinnsla;
+
+/**
+ A Voice is one slot in the AudioEngine's voice pool. Voices are created once with the engine
+ and reused for every note, so starting and releasing notes allocates nothing.
+ A voice keeps a playhead into its Sample, an Envelope that shapes its gain and
+ a fixed velocity gain and stereo position set when the note starts. The mixing itself is done
+ by the MixKernel.
+ */
+class Voice {
+    Sample sample;
+    int key;
+    long serial; // order the voice was started in, lower is older
+    private int position;
+    private float velocity = 1f;
+    private float left = 1f; // velocity times the pan gain of each channel
+    private float right = 1f;
+    private final Envelope envelope;
+
+    /**
+     * Creates an idle voice.
+     * @param settings the envelope times of the engine the voice belongs to
+     */
+    Voice(Envelope.Settings settings) {
+        this.envelope = new Envelope(settings);
+    }
+
+    /**
+     * Starts the voice on a new note from the beginning of the sample.
+     * @param sample the sample to play
+     * @param key the key the note belongs to
+     * @param serial a counter that increases with every note started
+     * @param velocity the gain of the note, 0 to 1
+     * @param pan the stereo position, -1 for left, 0 for centre, 1 for right
+     */
+    void start(Sample sample, int key, long serial, float velocity, float pan) {
+        this.sample = sample;
+        this.key = key;
+        this.serial = serial;
+        this.velocity = velocity;
+        this.left = velocity * Math.min(1f, 1f - pan); // the centre keeps both channels at full gain
+        this.right = velocity * Math.min(1f, 1f + pan);
+        this.position = 0;
+        envelope.noteOn();
+    }
+
+    /**
+     * Moves the envelope into its release stage.
+     */
+    void release() {
+        envelope.noteOff();
+    }
+
+    /**
+     * @return true while the key is still held, that is before the release stage
+     */
+    boolean isHeld() {
+        int stage = envelope.getStage();
+        return stage != Envelope.RELEASE && stage != Envelope.IDLE;
+    }
+
+    /**
+     * @return true while the voice is fading out after its key was released
+     */
+    boolean isReleasing() {
+        return envelope.getStage() == Envelope.RELEASE;
+    }
+
+    /**
+     * @return the current gain of the voice, envelope level times velocity
+     */
+    float getGain() {
+        return envelope.getLevel() * velocity;
+    }
+
+    /**
+     * Adds the next frames of this voice to the interleaved stereo mix buffer.
+     * @param out the mix buffer
+     * @param scratch a buffer the sample frames are read into, as long as out
+     * @param env a buffer the envelope levels are written into, at least frames long
+     * @param frames the number of frames to mix
+     * @return true while the voice still has something left to play
+     */
+    boolean mix(float[] out, float[] scratch, float[] env, int frames) {
+        int n = sample.read(position, scratch, frames);
+        position += n;
+        int live = n;
+        if (envelope.isSteady()) {
+            float level = envelope.getLevel();
+            MixKernel.INSTANCE.mix(out, scratch, level * left, level * right, n);
+        } else {
+            live = envelope.render(env, n);
+            MixKernel.INSTANCE.mix(out, scratch, env, left, right, live);
+        }
+        if (live < n || position >= sample.getFrames()) {
+            sample = null;
+            return false;
+        }
+        return true;
+    }
+}
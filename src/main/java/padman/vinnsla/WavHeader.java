@@ -0,0 +1,96 @@
+package padman.vinnsla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ WavHeader reads the RIFF/WAVE header of a file and finds where its data chunk starts,
+ without reading any of the audio data itself.
+ */
+class WavHeader {
+    static final int FORMAT_PCM = 1;
+    static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    final int format; // FORMAT_PCM or FORMAT_FLOAT
+    final int channels;
+    final int sampleRate;
+    final int bitsPerSample;
+    final long dataOffset;
+    final long dataLength;
+
+    private WavHeader(int format, int channels, int sampleRate, int bitsPerSample, long dataOffset, long dataLength) {
+        this.format = format;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitsPerSample = bitsPerSample;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * Walks the chunks of a WAVE file until the fmt and data chunks are found.
+     * @param channel an open channel to the file
+     * @return the parsed header
+     * @throws IOException if the file is not a WAVE file this class understands
+     */
+    static WavHeader read(FileChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buf, 0, 12);
+        if (buf.getInt(0) != 0x46464952 || buf.getInt(8) != 0x45564157) { // "RIFF", "WAVE"
+            throw new IOException("Not a RIFF/WAVE file");
+        }
+        int format = -1, channels = 0, sampleRate = 0, bits = 0;
+        long pos = 12;
+        long size = channel.size();
+        while (pos + 8 <= size) {
+            readFully(channel, buf, pos, 8);
+            int id = buf.getInt(0);
+            long length = Integer.toUnsignedLong(buf.getInt(4));
+            if (id == 0x20746d66) { // "fmt "
+                readFully(channel, buf, pos + 8, (int) Math.min(length, 40));
+                format = buf.getShort(0) & 0xFFFF;
+                channels = buf.getShort(2);
+                sampleRate = buf.getInt(4);
+                bits = buf.getShort(14);
+                if (format == FORMAT_EXTENSIBLE && length >= 26) {
+                    format = buf.getShort(24) & 0xFFFF; // first two bytes of the sub format GUID
+                }
+            } else if (id == 0x61746164) { // "data"
+                if (format == -1) { throw new IOException("data chunk before fmt chunk"); }
+                if (!(format == FORMAT_FLOAT && bits == 32) && !(format == FORMAT_PCM && bits == 16)) {
+                    throw new IOException("Unsupported sample format " + format + "/" + bits + " bit");
+                }
+                if (channels != 1 && channels != 2) {
+                    throw new IOException("Unsupported channel count " + channels);
+                }
+                return new WavHeader(format, channels, sampleRate, bits, pos + 8, Math.min(length, size - pos - 8));
+            }
+            pos += 8 + length + (length & 1); // chunks are padded to an even length
+        }
+        throw new IOException("No data chunk");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position, int length) throws IOException {
+        buf.clear().limit(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) { throw new IOException("Unexpected end of file"); }
+        }
+    }
+
+    /**
+     * @return the number of bytes one frame takes
+     */
+    int getFrameBytes() {
+        return channels * bitsPerSample / 8;
+    }
+
+    /**
+     * @return the number of frames in the data chunk
+     */
+    int getFrames() {
+        return (int) (dataLength / getFrameBytes());
+    }
+}
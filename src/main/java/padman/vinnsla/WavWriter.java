@@ -0,0 +1,87 @@
+package padman.vinnsla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ A WavWriter streams interleaved stereo float blocks to a 16 bit PCM WAV file.
+ The header is written with empty sizes and filled in when the writer is closed,
+ so the length does not have to be known up front.
+ */
+public class WavWriter implements Closeable {
+    private static final int HEADER_BYTES = 44;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long dataBytes = 0;
+
+    /**
+     * Creates or replaces a stereo 44.1 kHz WAV file.
+     * @param file the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public WavWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        int channels = AudioEngine.CHANNELS;
+        int rate = (int) AudioEngine.SAMPLE_RATE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt((int) (36 + dataBytes)).putInt(0x45564157); // "RIFF" size "WAVE"
+        header.putInt(0x20746d66).putInt(16).putShort((short) WavHeader.FORMAT_PCM).putShort((short) channels) // "fmt "
+                .putInt(rate).putInt(rate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        header.putInt(0x61746164).putInt((int) dataBytes); // "data"
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    /**
+     * Appends a block of frames, clipping anything outside -1..1.
+     * @param block interleaved left/right samples
+     * @param frames the number of frames to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(float[] block, int frames) throws IOException {
+        for (int i = 0; i < frames * AudioEngine.CHANNELS; i++) {
+            if (!buffer.hasRemaining()) { flush(); }
+            float s = Math.max(-1f, Math.min(1f, block[i]));
+            buffer.putShort((short) (s * Short.MAX_VALUE));
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            dataBytes += channel.write(buffer, HEADER_BYTES + dataBytes);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return the number of frames written so far
+     */
+    public long getFrames() {
+        return (dataBytes + buffer.position()) / (AudioEngine.CHANNELS * 2);
+    }
+
+    /**
+     * Writes what is left in the buffer, fills in the header sizes and closes the file.
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            writeHeader();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package padman.vinnsla;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LimiterTest {
+    private static final int BLOCK = 256;
+
+    @Test
+    void ceilingHoldsOnRisingInput() {
+        Limiter limiter = new Limiter();
+        limiter.parameter(Limiter.RELEASE).set(0.01f);
+        limiter.settleParameters();
+        limiter.reset();
+        float ceiling = (float) Math.pow(10, -0.3 / 20);
+        float[] buffer = new float[BLOCK * 2];
+        int frames = (int) AudioEngine.SAMPLE_RATE;
+        float loudest = 0f;
+        for (int start = 0; start < frames; start += BLOCK) {
+            for (int i = 0; i < BLOCK; i++) {
+                int frame = start + i;
+                float level = 4f * frame / frames; // swells from silence to 12 dB over full scale
+                // a low note, whose peaks fall for longer than the look-ahead before the next rises
+                float sine = (float) Math.sin(2 * Math.PI * frame / 320);
+                buffer[2 * i] = level * sine;
+                buffer[2 * i + 1] = level * sine * 0.5f;
+            }
+            limiter.process(buffer, BLOCK);
+            for (float sample : buffer) {
+                loudest = Math.max(loudest, Math.abs(sample));
+            }
+        }
+        assertTrue(loudest <= ceiling * 1.0001f, "peaked at " + loudest + " over a ceiling of " + ceiling);
+    }
+}